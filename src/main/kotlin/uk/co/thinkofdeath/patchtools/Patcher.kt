@@ -21,12 +21,22 @@ import java.io.InputStream
 import java.io.Reader
 import java.io.InputStreamReader
 import java.nio.charset.StandardCharsets
+import java.util.HashSet
 import uk.co.thinkofdeath.patchtools.patch.PatchClasses
 import uk.co.thinkofdeath.patchtools.matching.MatchGenerator
+import uk.co.thinkofdeath.patchtools.matching.MatchOptions
 import uk.co.thinkofdeath.patchtools.lexer.Lexer
+import uk.co.thinkofdeath.patchtools.logging.NarrowingStats
 import uk.co.thinkofdeath.patchtools.logging.StateLogger
 
 class Patcher(val classes: ClassSet) {
+
+    var options = MatchOptions()
+    // How much each index narrowed the candidates down in the
+    // last patch applied
+    var lastStats: NarrowingStats? = null
+        private set
+
     {
         classes.simplify()
     }
@@ -46,15 +56,16 @@ class Patcher(val classes: ClassSet) {
     }
 
     fun apply(patchClasses: PatchClasses, patchScope: PatchScope): PatchScope {
-        val generator = MatchGenerator(classes, patchClasses, patchScope)
+        patchClasses.setBackend(options.backend)
+        val generator = MatchGenerator(classes, patchClasses, patchScope, options)
+        lastStats = generator.stats
         val foundScope = generator.apply()
-        patchClasses.classes.forEach {
-            it.apply(foundScope, classes)
-        }
+        applyAll(patchClasses, foundScope)
         return foundScope
     }
 
     fun reapply(patchClasses: PatchClasses, patchScope: PatchScope) {
+        patchClasses.setBackend(options.backend)
         val logger = StateLogger()
         // Slightly faster to do it this way since the instruction checking is the heaviest
         patchClasses.classes.all { it.checkAttributes(logger, patchScope, classes) }
@@ -62,8 +73,19 @@ class Patcher(val classes: ClassSet) {
             && patchClasses.classes.all { it.checkMethods(logger, patchScope, classes) }
             && patchClasses.classes.all { it.checkMethodsInstructions(logger, patchScope, classes) }
 
+        applyAll(patchClasses, patchScope)
+    }
+
+    // Only the classes the patch rewrote have to be indexed again
+    private fun applyAll(patchClasses: PatchClasses, patchScope: PatchScope) {
+        val rewritten = HashSet<String>()
         patchClasses.classes.forEach {
             it.apply(patchScope, classes)
+            val cls = patchScope.getClass(it.ident.name)
+            if (cls != null) {
+                rewritten.add(cls.node.name)
+            }
         }
+        classes.invalidate(rewritten)
     }
 }
\ No newline at end of file
@@ -31,35 +31,188 @@ class PatchScope(private val parent: PatchScope? = null) {
     private val methodInstructionMap = hashMapOf<MethodNode, MutableMap<PatchInstruction, Int>>()
     private val methodLabelMap = hashMapOf<MethodNode, MutableMap<String, LabelNode>>()
 
+    // Reverse lookups for the mappings above, kept up to date
+    // by setClass, setMethod and setField. The remapper and the
+    // checks use these on every reference so they can't scan
+    private val classNames = hashMapOf<ClassWrapper, MutableSet<String>>()
+    private val methodsByName = hashMapOf<String, MutableList<MethodWrapper>>()
+    private val fieldsByName = hashMapOf<String, MutableList<FieldWrapper>>()
+
+    // Set whilst a check on this scope is being recorded
+    var recorder: ScopeRecorder? = null
+
     fun duplicate(): PatchScope {
         val patchScope = PatchScope()
-        patchScope.classMappings.putAll(classMappings)
-        patchScope.methodMappings.putAll(methodMappings)
-        patchScope.fieldMappings.putAll(fieldMappings)
+        patchScope.mergeMappings(this)
         return patchScope
     }
 
+    // Whilst marked every change to the scope is logged so
+    // that it can be undone. This lets a search bind and unbind
+    // candidates on a single scope instead of copying it for
+    // every candidate. Each entry takes a kind and three slots
+    private var trailKinds = IntArray(16)
+    private var trail = arrayOfNulls<Any>(48)
+    private var trailSize = 0
+    private var marks = 0
+
+    fun mark(): Int {
+        marks++
+        return trailSize
+    }
+
+    // The current end of the trail, changes made after this
+    // can be inspected with boundSince
+    fun position(): Int {
+        return trailSize
+    }
+
+    // Whether a class, method or field has been bound since
+    // the position was taken
+    fun boundSince(position: Int): Boolean {
+        for (i in position..trailSize - 1) {
+            val kind = trailKinds[i]
+            if (kind == CLASS || kind == METHOD || kind == FIELD) {
+                return true
+            }
+        }
+        return false
+    }
+
+    // Reverts every change since the mark was taken
+    fun undo(mark: Int) {
+        while (trailSize > mark) {
+            trailSize--
+            revert(trailKinds[trailSize], trailSize * 3)
+        }
+        marks--
+    }
+
+    // Keeps every change since the mark was taken, they can
+    // still be undone by any mark taken before it
+    fun commit(mark: Int) {
+        marks--
+        if (marks == 0) {
+            for (i in 0..trailSize * 3 - 1) {
+                trail[i] = null
+            }
+            trailSize = 0
+        }
+    }
+
+    private fun log(kind: Int, a: Any?, b: Any?, c: Any?) {
+        if (marks == 0) return
+        if (trailSize == trailKinds.size) {
+            trailKinds = trailKinds.copyOf(trailSize * 2)
+            trail = trail.copyOf(trailSize * 6)
+        }
+        trailKinds[trailSize] = kind
+        val pos = trailSize * 3
+        trail[pos] = a
+        trail[pos + 1] = b
+        trail[pos + 2] = c
+        trailSize++
+    }
+
+    private fun revert(kind: Int, pos: Int) {
+        val a = trail[pos]
+        val b = trail[pos + 1]
+        val c = trail[pos + 2]
+        trail[pos] = null
+        trail[pos + 1] = null
+        trail[pos + 2] = null
+        when (kind) {
+            CLASS -> setClass(a as String, b as ClassWrapper?)
+            METHOD -> setMethod(a as MethodWrapper, b as String?)
+            FIELD -> setField(a as FieldWrapper, b as String?)
+            INSTRUCTIONS -> restore(methodInstructionMap, a as MethodNode, b as MutableMap<PatchInstruction, Int>?)
+            LABELS -> restore(methodLabelMap, a as MethodNode, b as MutableMap<String, LabelNode>?)
+            LABEL -> {
+                val labels = methodLabelMap[a as MethodNode]
+                if (labels != null) {
+                    restore(labels, b as String, c as LabelNode?)
+                }
+            }
+        }
+    }
+
+    private fun <K, V> restore(map: MutableMap<K, V>, key: K, value: V?) {
+        if (value == null) {
+            map.remove(key)
+        } else {
+            map[key] = value
+        }
+    }
+
+    private fun setClass(name: String, cw: ClassWrapper?): ClassWrapper? {
+        val old = if (cw == null) classMappings.remove(name) else classMappings.put(name, cw)
+        if (old != null) {
+            val names = classNames[old]
+            names.remove(name)
+            if (names.isEmpty()) {
+                classNames.remove(old)
+            }
+        }
+        if (cw != null) {
+            classNames.getOrPut(cw, { linkedSetOf() }).add(name)
+        }
+        return old
+    }
+
+    private fun setMethod(mw: MethodWrapper, joined: String?): String? {
+        val old = if (joined == null) methodMappings.remove(mw) else methodMappings.put(mw, joined)
+        if (old != null) {
+            val list = methodsByName[old]
+            list.remove(mw)
+            if (list.isEmpty()) {
+                methodsByName.remove(old)
+            }
+        }
+        if (joined != null) {
+            methodsByName.getOrPut(joined, { arrayListOf() }).add(mw)
+        }
+        return old
+    }
+
+    private fun setField(fw: FieldWrapper, joined: String?): String? {
+        val old = if (joined == null) fieldMappings.remove(fw) else fieldMappings.put(fw, joined)
+        if (old != null) {
+            val list = fieldsByName[old]
+            list.remove(fw)
+            if (list.isEmpty()) {
+                fieldsByName.remove(old)
+            }
+        }
+        if (joined != null) {
+            fieldsByName.getOrPut(joined, { arrayListOf() }).add(fw)
+        }
+        return old
+    }
+
     fun putClass(cw: ClassWrapper, name: String): Boolean {
-        return classMappings.put(name, cw) != null
+        recorder?.write("class " + name, { it.putClass(cw, name) })
+        val old = setClass(name, cw)
+        log(CLASS, name, old, null)
+        return old != null
     }
 
     fun getClass(name: String): ClassWrapper? {
-        val cls = classMappings[name]
-        if (cls == null) {
-            return parent?.getClass(name)
-        }
+        val cls = classMappings[name] ?: parent?.getClass(name)
+        recorder?.read("class " + name, cls, { it.getClass(name) })
         return cls
     }
 
     fun getClass(cls: ClassWrapper): String? {
-        return classMappings
-            .filterValues { it == cls }
-            .map { it.getKey() }
-            .first()
+        return classNames[cls]?.firstOrNull()
     }
 
     fun putMethod(mw: MethodWrapper, name: String, desc: String): Boolean {
-        return methodMappings.put(mw, name + desc) != null
+        val joined = name + desc
+        // Any owner may be answered by the new binding
+        recorder?.writeAll("method " + joined + " ", { it.putMethod(mw, name, desc) })
+        val old = setMethod(mw, joined)
+        log(METHOD, mw, old, null)
+        return old != null
     }
 
     fun getMethod(mw: MethodWrapper): String? {
@@ -68,22 +221,18 @@ class PatchScope(private val parent: PatchScope? = null) {
 
     fun getMethod(owner: ClassWrapper, name: String, desc: String): MethodWrapper? {
         val joined = name + desc
-        return methodMappings.keySet()
-            .filter { it.has(owner) }
-            .filter { getMethodDesc(it).equals(joined) }
-            .firstOrNull() ?: parent?.getMethod(owner, name, desc)
-    }
-
-    private fun getMethodDesc(mw: MethodWrapper): String? {
-        val key = methodMappings[mw]
-        if (key == null) {
-            return parent?.getMethodDesc(mw)
-        }
-        return key
+        val mw = methodsByName[joined]
+            ?.firstOrNull { it.has(owner) } ?: parent?.getMethod(owner, name, desc)
+        recorder?.read("method " + joined + " " + owner.node.name, mw, { it.getMethod(owner, name, desc) })
+        return mw
     }
 
     fun putField(mw: FieldWrapper, name: String, desc: String): Boolean {
-        return fieldMappings.put(mw, name + "::" + desc) != null
+        val joined = name + "::" + desc
+        recorder?.writeAll("field " + joined + " ", { it.putField(mw, name, desc) })
+        val old = setField(mw, joined)
+        log(FIELD, mw, old, null)
+        return old != null
     }
 
     fun getField(mw: FieldWrapper): String? {
@@ -92,18 +241,10 @@ class PatchScope(private val parent: PatchScope? = null) {
 
     fun getField(owner: ClassWrapper, name: String, desc: String): FieldWrapper? {
         val joined = name + "::" + desc
-        return fieldMappings.keySet()
-            .filter { it.has(owner) }
-            .filter { getFieldDesc(it).equals(joined) }
-            .firstOrNull() ?: parent?.getField(owner, name, desc)
-    }
-
-    private fun getFieldDesc(mw: FieldWrapper): String? {
-        val key = fieldMappings[mw]
-        if (key == null) {
-            return parent?.getFieldDesc(mw)
-        }
-        return key
+        val fw = fieldsByName[joined]
+            ?.firstOrNull { it.has(owner) } ?: parent?.getField(owner, name, desc)
+        recorder?.read("field " + joined + " " + owner.node.name, fw, { it.getField(owner, name, desc) })
+        return fw
     }
 
     fun getInstructMap(node: MethodNode): MutableMap<PatchInstruction, Int>? {
@@ -111,38 +252,64 @@ class PatchScope(private val parent: PatchScope? = null) {
     }
 
     fun putInstructMap(node: MethodNode, instMap: MutableMap<PatchInstruction, Int>) {
-        methodInstructionMap[node] = instMap
+        recorder?.write(null, { it.putInstructMap(node, instMap) })
+        log(INSTRUCTIONS, node, methodInstructionMap.put(node, instMap), null)
     }
 
     fun getLabel(node: MethodNode, name: String): LabelNode? {
-        return methodLabelMap[node]?.get(name)
+        val label = methodLabelMap[node]?.get(name)
+        recorder?.read("label " + name, label, { it.getLabel(node, name) })
+        return label
     }
 
     fun putLabel(node: MethodNode, label: LabelNode, name: String) {
+        recorder?.write("label " + name, { it.putLabel(node, label, name) })
         if (node !in methodLabelMap) {
             methodLabelMap[node] = hashMapOf()
+            log(LABELS, node, null, null)
         }
-        methodLabelMap[node][name] = label
+        log(LABEL, node, name, methodLabelMap[node].put(name, label))
+    }
+
+    private fun mergeMappings(scope: PatchScope) {
+        scope.classMappings.entrySet().forEach { setClass(it.getKey(), it.getValue()) }
+        scope.methodMappings.entrySet().forEach { setMethod(it.getKey(), it.getValue()) }
+        scope.fieldMappings.entrySet().forEach { setField(it.getKey(), it.getValue()) }
     }
 
     fun merge(scope: PatchScope) {
-        classMappings.putAll(scope.classMappings)
-        methodMappings.putAll(scope.methodMappings)
-        fieldMappings.putAll(scope.fieldMappings)
+        mergeMappings(scope)
         methodInstructionMap.putAll(scope.methodInstructionMap)
         methodLabelMap.putAll(scope.methodLabelMap)
     }
 
     fun clearLabels(node: MethodNode) {
-        methodLabelMap.remove(node)
+        recorder?.writeAll("label ", { it.clearLabels(node) })
+        val old = methodLabelMap.remove(node)
+        if (old != null) {
+            log(LABELS, node, old, null)
+        }
     }
 
     fun clearInstructions(node: MethodNode) {
-        methodInstructionMap.remove(node)
+        recorder?.write(null, { it.clearInstructions(node) })
+        val old = methodInstructionMap.remove(node)
+        if (old != null) {
+            log(INSTRUCTIONS, node, old, null)
+        }
     }
 
     override fun toString(): String {
         return "PatchScope(cm=$classMappings, fm=$fieldMappings, mm=$methodMappings)"
     }
+
+    class object {
+        private val CLASS = 0
+        private val METHOD = 1
+        private val FIELD = 2
+        private val INSTRUCTIONS = 3
+        private val LABELS = 4
+        private val LABEL = 5
+    }
 }
 
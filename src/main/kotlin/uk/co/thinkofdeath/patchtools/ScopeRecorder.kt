@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools
+
+import java.util.ArrayList
+import java.util.HashMap
+import java.util.HashSet
+
+// Records everything a check reads from and writes to a scope.
+// If a later scope returns the same values for every read the
+// check would do exactly the same thing again, so the writes
+// can be replayed instead of running it. A recorder with a
+// parent passes its reads on but keeps its writes until they
+// are committed, this lets a check try something out on the
+// scope and undo it without the writes being replayed later
+public class ScopeRecorder(private val parent: ScopeRecorder? = null) {
+
+    private val reads = ArrayList<Read>()
+    private val readValues = HashMap<String, Any?>()
+    private val writes = ArrayList<(PatchScope) -> Unit>()
+    // Reads that are answered by an earlier write instead of
+    // the scope the check started with
+    private val written = HashSet<String>()
+    private val writtenPrefixes = HashSet<String>()
+
+    fun read(key: String, value: Any?, lookup: (PatchScope) -> Any?) {
+        if (key in written || writtenPrefixes.any { key.startsWith(it) }) {
+            return
+        }
+        if (parent != null) {
+            parent.read(key, value, lookup)
+            return
+        }
+        if (key in readValues && readValues[key].identityEquals(value)) {
+            return
+        }
+        readValues[key] = value
+        reads.add(Read(value, lookup))
+    }
+
+    fun write(key: String?, action: (PatchScope) -> Unit) {
+        if (key != null) {
+            written.add(key)
+        }
+        writes.add(action)
+    }
+
+    fun writeAll(prefix: String, action: (PatchScope) -> Unit) {
+        writtenPrefixes.add(prefix)
+        writes.add(action)
+    }
+
+    // Hands the writes made through this recorder to its parent
+    fun commit() {
+        parent!!.written.addAll(written)
+        parent.writtenPrefixes.addAll(writtenPrefixes)
+        parent.writes.addAll(writes)
+    }
+
+    public fun matches(scope: PatchScope): Boolean {
+        return reads.all { it.lookup(scope).identityEquals(it.value) }
+    }
+
+    public fun replay(scope: PatchScope) {
+        writes.forEach { it(scope) }
+    }
+
+    private class Read(val value: Any?, val lookup: (PatchScope) -> Any?)
+}
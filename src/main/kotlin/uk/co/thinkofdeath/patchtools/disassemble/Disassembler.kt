@@ -33,6 +33,7 @@ public class Disassembler(private val classSet: ClassSet) {
 
     public fun disassemble(cls: String): String {
         val classWrapper = classSet.getClassWrapper(cls)!!
+        classWrapper.ensureCode()
 
         val patch = StringBuilder("\n")
 
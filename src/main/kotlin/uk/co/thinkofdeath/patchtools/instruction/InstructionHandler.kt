@@ -35,6 +35,25 @@ public trait InstructionHandler {
 
     public fun validate(instruction: PatchInstruction)
 
+    // Parses any params that are types or constants ahead of time using
+    // PatchInstruction.compileType and friends
+    public fun compile(instruction: PatchInstruction) {
+    }
+
+    // Writes the checks that don't need the scope or the class
+    // set for the generated matcher. Returns whether they are
+    // enough to decide a match, otherwise check is still called
+    // for instructions that pass them
+    public fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        return false
+    }
+
+    // The opcodes an instruction this matches could have, null
+    // if it isn't known
+    public fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return null
+    }
+
     public fun getReferencedClasses(instruction: PatchInstruction): List<MatchClass> {
         return listOf()
     }
@@ -46,4 +65,16 @@ public trait InstructionHandler {
     public fun getReferencedFields(instruction: PatchInstruction): List<MatchField> {
         return listOf()
     }
+
+    // Strings that have to be loaded by any method this
+    // instruction matches against
+    public fun getRequiredStrings(instruction: PatchInstruction): List<String> {
+        return listOf()
+    }
+
+    // Keys from ReferenceIndex for the methods and fields this
+    // instruction has to use in any method it matches against
+    public fun getRequiredReferences(instruction: PatchInstruction): List<String> {
+        return listOf()
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.instruction
+
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+
+// Writes the checks of one element of a generated matcher. The
+// instruction being tested is in local 2 and every check jumps to
+// the fail label when it doesn't hold
+public class MatcherWriter(private val mv: MethodVisitor, private val fail: Label) {
+
+    public fun isType(cls: String) {
+        mv.visitVarInsn(Opcodes.ALOAD, INSN)
+        mv.visitTypeInsn(Opcodes.INSTANCEOF, cls)
+        mv.visitJumpInsn(Opcodes.IFEQ, fail)
+    }
+
+    public fun opcode(opcode: Int) {
+        mv.visitVarInsn(Opcodes.ALOAD, INSN)
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NODE, "getOpcode", "()I", false)
+        push(opcode)
+        mv.visitJumpInsn(Opcodes.IF_ICMPNE, fail)
+    }
+
+    // The instruction must already be known to be of the
+    // owner's type
+    public fun intField(owner: String, name: String, value: Int) {
+        loadField(owner, name, "I")
+        push(value)
+        mv.visitJumpInsn(Opcodes.IF_ICMPNE, fail)
+    }
+
+    public fun fieldIsType(owner: String, name: String, desc: String, cls: String) {
+        loadField(owner, name, desc)
+        mv.visitTypeInsn(Opcodes.INSTANCEOF, cls)
+        mv.visitJumpInsn(Opcodes.IFEQ, fail)
+    }
+
+    public fun stringField(owner: String, name: String, value: String) {
+        fieldEquals(owner, name, "Ljava/lang/String;", value)
+    }
+
+    public fun fieldEquals(owner: String, name: String, desc: String, value: String) {
+        mv.visitLdcInsn(value)
+        loadField(owner, name, desc)
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z", false)
+        mv.visitJumpInsn(Opcodes.IFEQ, fail)
+    }
+
+    public fun fail() {
+        mv.visitJumpInsn(Opcodes.GOTO, fail)
+    }
+
+    private fun loadField(owner: String, name: String, desc: String) {
+        mv.visitVarInsn(Opcodes.ALOAD, INSN)
+        mv.visitTypeInsn(Opcodes.CHECKCAST, owner)
+        mv.visitFieldInsn(Opcodes.GETFIELD, owner, name, desc)
+    }
+
+    private fun push(value: Int) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value)
+        } else if (value >= -128 && value <= 127) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value)
+        } else if (value >= -32768 && value <= 32767) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value)
+        } else {
+            mv.visitLdcInsn(value)
+        }
+    }
+
+    class object {
+        private val INSN = 2
+        private val NODE = "org/objectweb/asm/tree/AbstractInsnNode"
+    }
+}
@@ -42,9 +42,9 @@ public class ArrayInstruction : InstructionHandler {
             return (insn is TypeInsnNode && insn.getOpcode() == Opcodes.ANEWARRAY) || (insn is IntInsnNode && insn.getOpcode() == Opcodes.NEWARRAY)
         }
 
-        val pType = Type.getType(instruction.params[0])
+        val pType = instruction.patchType(0)
 
-        if (pType.getSort() == Type.OBJECT || pType.getSort() == Type.ARRAY) {
+        if (pType.sort == Type.OBJECT || pType.sort == Type.ARRAY) {
             if (insn !is TypeInsnNode) {
                 return false
             }
@@ -55,7 +55,7 @@ public class ArrayInstruction : InstructionHandler {
                 return false
             }
             val `type`: Int
-            when (pType.getSort()) {
+            when (pType.sort) {
                 Type.BOOLEAN -> `type` = 4
                 Type.CHAR -> `type` = 5
                 Type.FLOAT -> `type` = 6
@@ -70,6 +70,12 @@ public class ArrayInstruction : InstructionHandler {
         }
     }
 
+    override fun compile(instruction: PatchInstruction) {
+        if (instruction.params[0] != "*") {
+            instruction.compileType(0)
+        }
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         val pType = Type.getType(instruction.params[0])
 
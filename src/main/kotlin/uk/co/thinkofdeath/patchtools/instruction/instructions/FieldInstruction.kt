@@ -24,9 +24,11 @@ import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.matching.MatchClass
 import uk.co.thinkofdeath.patchtools.matching.MatchField
 import uk.co.thinkofdeath.patchtools.matching.MatchGenerator
+import uk.co.thinkofdeath.patchtools.matching.ReferenceIndex
 import uk.co.thinkofdeath.patchtools.patch.Ident
 import uk.co.thinkofdeath.patchtools.patch.PatchClass
 import uk.co.thinkofdeath.patchtools.patch.PatchInstruction
@@ -43,7 +45,7 @@ public class FieldInstruction(private val opcode: Int) : InstructionHandler {
             return false
         }
 
-        val cls = Ident(instruction.params[0])
+        val cls = instruction.ident(0)
         var clsName = cls.name
         if (clsName != "*") {
             if (scope != null || !cls.isWeak()) {
@@ -63,7 +65,7 @@ public class FieldInstruction(private val opcode: Int) : InstructionHandler {
             }
         }
 
-        val fieldIdent = Ident(instruction.params[1])
+        val fieldIdent = instruction.ident(1)
         var fieldName = fieldIdent.name
         if (fieldName != "*") {
             if (scope != null || !fieldIdent.isWeak()) {
@@ -84,12 +86,38 @@ public class FieldInstruction(private val opcode: Int) : InstructionHandler {
             }
         }
 
-        val patchDesc = Type.getType(instruction.params[2])
+        val patchDesc = instruction.patchType(2)
         val desc = Type.getType(insn.desc)
 
         return PatchClass.checkTypes(classSet, scope, patchDesc, desc)
     }
 
+    override fun compile(instruction: PatchInstruction) {
+        if (instruction.params[2] != "*") {
+            instruction.compileType(2)
+        }
+    }
+
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        val owner = Type.getInternalName(javaClass<FieldInsnNode>())
+        writer.isType(owner)
+        writer.opcode(opcode)
+        // Weak names and the type need the scope
+        val cls = instruction.ident(0)
+        if (!cls.isWeak() && cls.name != "*") {
+            writer.stringField(owner, "owner", cls.name)
+        }
+        val name = instruction.ident(1)
+        if (!name.isWeak() && name.name != "*") {
+            writer.stringField(owner, "name", name.name)
+        }
+        return false
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(opcode)
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         val ownerId = Ident(instruction.params[0])
         var owner = ownerId.name
@@ -136,6 +164,16 @@ public class FieldInstruction(private val opcode: Int) : InstructionHandler {
         Utils.validateType(instruction.params[2])
     }
 
+    override fun getRequiredReferences(instruction: PatchInstruction): List<String> {
+        val owner = Ident(instruction.params[0])
+        if (owner.isWeak() || owner.name == "*") {
+            return listOf()
+        }
+        val name = Ident(instruction.params[1])
+        val required = if (name.isWeak() || name.name == "*") null else name.name
+        return listOf(ReferenceIndex.fieldKey(opcode, owner.name, required))
+    }
+
     override fun getReferencedClasses(instruction: PatchInstruction): List<MatchClass> {
         val classes = ArrayList<MatchClass>()
         val owner = Ident(instruction.params[0])
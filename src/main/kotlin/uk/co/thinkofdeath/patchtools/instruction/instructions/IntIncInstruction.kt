@@ -16,12 +16,15 @@
 
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.IincInsnNode
 import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.patch.PatchInstruction
 import uk.co.thinkofdeath.patchtools.patch.ValidateException
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
@@ -31,26 +34,24 @@ public class IntIncInstruction : InstructionHandler {
         if (insn !is IincInsnNode) {
             return false
         }
-        var `var` = 0
-        var any = false
-        if (instruction.params[0] == "*") {
-            any = true
-        } else {
-            `var` = Integer.parseInt(instruction.params[0])
+        return (instruction.isWild(0) || instruction.int(0) == insn.`var`)
+            && (instruction.isWild(1) || instruction.int(1) == insn.incr)
+    }
+
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        val owner = Type.getInternalName(javaClass<IincInsnNode>())
+        writer.isType(owner)
+        if (!instruction.isWild(0)) {
+            writer.intField(owner, "var", instruction.int(0))
         }
-        var other = insn.`var`
-        if (any || `var` == other) {
-            var `val` = 0
-            any = false
-            if (instruction.params[1] == "*") {
-                any = true
-            } else {
-                `val` = Integer.parseInt(instruction.params[1])
-            }
-            other = insn.incr
-            return !(!any && other != `val`)
+        if (!instruction.isWild(1)) {
+            writer.intField(owner, "incr", instruction.int(1))
         }
-        return false
+        return true
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(Opcodes.IINC)
     }
 
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
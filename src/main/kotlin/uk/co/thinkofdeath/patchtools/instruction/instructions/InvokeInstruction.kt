@@ -24,8 +24,10 @@ import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.matching.MatchClass
 import uk.co.thinkofdeath.patchtools.matching.MatchGenerator
+import uk.co.thinkofdeath.patchtools.matching.ReferenceIndex
 import uk.co.thinkofdeath.patchtools.matching.MatchMethod
 import uk.co.thinkofdeath.patchtools.patch.Ident
 import uk.co.thinkofdeath.patchtools.patch.PatchClass
@@ -43,7 +45,7 @@ public class InvokeInstruction(private val opcode: Int) : InstructionHandler {
             return false
         }
 
-        val cls = Ident(instruction.params[0])
+        val cls = instruction.ident(0)
         var clsName = cls.name
         if (clsName != "*") {
             if (scope != null || !cls.isWeak()) {
@@ -63,7 +65,7 @@ public class InvokeInstruction(private val opcode: Int) : InstructionHandler {
             }
         }
 
-        val methodIdent = Ident(instruction.params[1])
+        val methodIdent = instruction.ident(1)
         var methodName = methodIdent.name
         if (methodName != "*") {
             if (scope != null || !methodIdent.isWeak()) {
@@ -84,22 +86,48 @@ public class InvokeInstruction(private val opcode: Int) : InstructionHandler {
             }
         }
 
-        val patchDesc = Type.getMethodType(instruction.params[2])
+        val patchDesc = instruction.patchMethodType(2)
         val desc = Type.getMethodType(insn.desc)
+        val patchArgs = patchDesc.arguments!!
+        val args = desc.getArgumentTypes()
 
-        if (desc.getArgumentTypes().size != patchDesc.getArgumentTypes().size) {
+        if (args.size != patchArgs.size) {
             return false
         }
 
-        for (i in 0..patchDesc.getArgumentTypes().size - 1) {
-            val pt = patchDesc.getArgumentTypes()[i]
-            val t = desc.getArgumentTypes()[i]
+        for (i in patchArgs.indices) {
+            val pt = patchArgs[i]
+            val t = args[i]
 
             if (!PatchClass.checkTypes(classSet, scope, pt, t)) {
                 return false
             }
         }
-        return PatchClass.checkTypes(classSet, scope, patchDesc.getReturnType(), desc.getReturnType())
+        return PatchClass.checkTypes(classSet, scope, patchDesc.returnType!!, desc.getReturnType())
+    }
+
+    override fun compile(instruction: PatchInstruction) {
+        instruction.compileMethodType(2)
+    }
+
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        val owner = Type.getInternalName(javaClass<MethodInsnNode>())
+        writer.isType(owner)
+        writer.opcode(opcode)
+        // Weak names and the types need the scope
+        val cls = instruction.ident(0)
+        if (!cls.isWeak() && cls.name != "*") {
+            writer.stringField(owner, "owner", cls.name)
+        }
+        val name = instruction.ident(1)
+        if (!name.isWeak() && name.name != "*") {
+            writer.stringField(owner, "name", name.name)
+        }
+        return false
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(opcode)
     }
 
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
@@ -157,6 +185,16 @@ public class InvokeInstruction(private val opcode: Int) : InstructionHandler {
         Utils.validateMethodType(instruction.params[2])
     }
 
+    override fun getRequiredReferences(instruction: PatchInstruction): List<String> {
+        val owner = Ident(instruction.params[0])
+        if (owner.isWeak() || owner.name == "*") {
+            return listOf()
+        }
+        val name = Ident(instruction.params[1])
+        val required = if (name.isWeak() || name.name == "*") null else name.name
+        return listOf(ReferenceIndex.methodKey(opcode, owner.name, required))
+    }
+
     override fun getReferencedClasses(instruction: PatchInstruction): List<MatchClass> {
         if (instruction.params.size != 3) {
             throw RuntimeException("Incorrect number of arguments for invoke")
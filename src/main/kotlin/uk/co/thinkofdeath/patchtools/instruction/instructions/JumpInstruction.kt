@@ -17,12 +17,14 @@
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
 import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.JumpInsnNode
 import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.patch.Ident
 import uk.co.thinkofdeath.patchtools.patch.PatchInstruction
 import uk.co.thinkofdeath.patchtools.patch.ValidateException
@@ -32,7 +34,17 @@ public class JumpInstruction(private val opcode: Int) : InstructionHandler {
 
     override fun check(classSet: ClassSet, scope: PatchScope?, instruction: PatchInstruction, method: MethodNode, insn: AbstractInsnNode): Boolean {
         return !(insn !is JumpInsnNode || insn.getOpcode() != opcode)
-            && Utils.checkOrSetLabel(scope, method, instruction.params[0], insn.label)
+            && Utils.checkOrSetLabel(scope, method, instruction.ident(0), insn.label)
+    }
+
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        writer.isType(Type.getInternalName(javaClass<JumpInsnNode>()))
+        writer.opcode(opcode)
+        return Utils.generateLabel(writer, instruction.ident(0))
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(opcode)
     }
 
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
@@ -16,12 +16,14 @@
 
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
+import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.LabelNode
 import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.patch.Ident
 import uk.co.thinkofdeath.patchtools.patch.PatchInstruction
 import uk.co.thinkofdeath.patchtools.patch.ValidateException
@@ -31,10 +33,19 @@ public class LabelInstruction : InstructionHandler {
     override fun check(classSet: ClassSet, scope: PatchScope?, instruction: PatchInstruction, method: MethodNode, insn: AbstractInsnNode): Boolean {
         return insn is LabelNode
             && instruction.params.size == 1
-            && Utils.checkOrSetLabel(scope, method, instruction.params[0], insn)
+            && Utils.checkOrSetLabel(scope, method, instruction.ident(0), insn)
 
     }
 
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        writer.isType(Type.getInternalName(javaClass<LabelNode>()))
+        if (instruction.params.size != 1) {
+            writer.fail()
+            return true
+        }
+        return Utils.generateLabel(writer, instruction.ident(0))
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         if (instruction.params.size != 1) {
             throw RuntimeException("Incorrect number of arguments for label")
@@ -16,6 +16,7 @@
 
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
+import org.objectweb.asm.Opcodes
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.LookupSwitchInsnNode
 import org.objectweb.asm.tree.MethodNode
@@ -33,7 +34,7 @@ public class LookupSwitchInstruction : InstructionHandler {
             return false
         }
 
-        if (!Utils.checkOrSetLabel(scope, method, instruction.params[0], insn.dflt)) {
+        if (!Utils.checkOrSetLabel(scope, method, instruction.ident(0), insn.dflt)) {
             return false
         }
 
@@ -50,6 +51,10 @@ public class LookupSwitchInstruction : InstructionHandler {
         return true
     }
 
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(Opcodes.LOOKUPSWITCH)
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         if (instruction.params.size != 1) {
             throw RuntimeException("Incorrect number of arguments for switch-table")
@@ -16,6 +16,7 @@
 
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
+import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.MethodNode
@@ -40,14 +41,25 @@ public class MultiArrayInstruction : InstructionHandler {
             return false
         }
 
-        val pType = Type.getType(instruction.params[0])
-        val dims = if (instruction.params[1] == "*") -1 else Integer.parseInt(instruction.params[1])
+        val dims = if (instruction.isWild(1)) -1 else instruction.int(1)
+        if (dims != -1 && dims != insn.dims) {
+            return false
+        }
+
+        if (instruction.isWild(0)) {
+            return true
+        }
+        return PatchClass.checkTypes(classSet, scope, instruction.patchType(0), Type.getType(insn.desc))
+    }
 
-        if (instruction.params[0] == "*") {
-            return (dims == -1 || dims == insn.dims)
+    override fun compile(instruction: PatchInstruction) {
+        if (instruction.params[0] != "*") {
+            instruction.compileType(0)
         }
-        return PatchClass.checkTypes(classSet, scope, pType, Type.getType(insn.desc))
-            && (dims == -1 || dims == insn.dims)
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(Opcodes.MULTIANEWARRAY)
     }
 
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
@@ -16,6 +16,7 @@
 
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
+import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.LdcInsnNode
@@ -23,6 +24,7 @@ import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.matching.MatchClass
 import uk.co.thinkofdeath.patchtools.matching.MatchGenerator
 import uk.co.thinkofdeath.patchtools.patch.Ident
@@ -38,21 +40,36 @@ public class PushClassInstruction : InstructionHandler {
         if (insn !is LdcInsnNode) {
             return false
         }
-        val className = instruction.params[0]
-
         if (insn.cst is Type) {
-            if (className == "*") {
+            if (instruction.isWild(0)) {
                 return true
             }
 
             val `type` = insn.cst as Type
 
-            return PatchClass.checkTypes(classSet, scope, Type.getObjectType(className), `type`)
+            return PatchClass.checkTypes(classSet, scope, instruction.patchObjectType(0), `type`)
         } else {
             return false
         }
     }
 
+    override fun compile(instruction: PatchInstruction) {
+        if (instruction.params[0] != "*") {
+            instruction.compileObjectType(0)
+        }
+    }
+
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        val owner = Type.getInternalName(javaClass<LdcInsnNode>())
+        writer.isType(owner)
+        writer.fieldIsType(owner, "cst", "Ljava/lang/Object;", Type.getInternalName(javaClass<Type>()))
+        return instruction.isWild(0)
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(Opcodes.LDC)
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         val nDesc = StringBuilder()
         PatchClass.updatedTypeString(classSet, scope, nDesc, Type.getObjectType(instruction.params[0]))
@@ -38,7 +38,7 @@ public class PushFloatInstruction : InstructionHandler {
         if (instruction.params[0] == "*") {
             any = true
         } else {
-            `val` = java.lang.Float.parseFloat(instruction.params[0])
+            `val` = instruction.constant as Float? ?: java.lang.Float.parseFloat(instruction.params[0])
         }
 
         if (insn is LdcInsnNode) {
@@ -54,6 +54,16 @@ public class PushFloatInstruction : InstructionHandler {
         return false
     }
 
+    override fun compile(instruction: PatchInstruction) {
+        if (instruction.params.size == 1 && !instruction.isWild(0)) {
+            instruction.compileConstant(java.lang.Float.parseFloat(instruction.params[0]))
+        }
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(Opcodes.FCONST_0, Opcodes.FCONST_1, Opcodes.FCONST_2, Opcodes.LDC)
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         if (instruction.params.size != 1) {
             throw RuntimeException()
@@ -30,13 +30,8 @@ public class PushIntInstruction : InstructionHandler {
         if (instruction.params.size != 1) {
             return false
         }
-        var `val` = 0
-        var any = false
-        if (instruction.params[0] == "*") {
-            any = true
-        } else {
-            `val` = Integer.parseInt(instruction.params[0])
-        }
+        val any = instruction.isWild(0)
+        val `val` = if (any) 0 else instruction.int(0)
 
         if (insn is LdcInsnNode) {
             if (insn.cst is Int) {
@@ -56,6 +51,14 @@ public class PushIntInstruction : InstructionHandler {
         return false
     }
 
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(
+            Opcodes.ICONST_M1, Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2,
+            Opcodes.ICONST_3, Opcodes.ICONST_4, Opcodes.ICONST_5,
+            Opcodes.BIPUSH, Opcodes.SIPUSH, Opcodes.LDC
+        )
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         if (instruction.params.size != 1) {
             throw RuntimeException()
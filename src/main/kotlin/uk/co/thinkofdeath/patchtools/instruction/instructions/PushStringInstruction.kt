@@ -16,12 +16,15 @@
 
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.LdcInsnNode
 import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.patch.PatchInstruction
 import uk.co.thinkofdeath.patchtools.patch.ValidateException
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
@@ -31,7 +34,7 @@ public class PushStringInstruction : InstructionHandler {
         if (insn !is LdcInsnNode) {
             return false
         }
-        var cst = instruction.params.join(" ");
+        val cst = instruction.text
 
         if (insn.cst is String) {
             if (cst == "*") {
@@ -41,8 +44,10 @@ public class PushStringInstruction : InstructionHandler {
             if (!cst.startsWith("\"") || !cst.endsWith("\"")) {
                 return false
             }
-            cst = cst.substring(1, cst.length() - 1)
-            if (insn.cst != cst) {
+            // Compare in place rather than cutting the quotes off
+            val other = insn.cst as String
+            if (other.length() != cst.length() - 2
+                || !cst.regionMatches(1, other, 0, other.length())) {
                 return false
             }
         } else {
@@ -51,6 +56,26 @@ public class PushStringInstruction : InstructionHandler {
         return true
     }
 
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        val owner = Type.getInternalName(javaClass<LdcInsnNode>())
+        writer.isType(owner)
+        writer.fieldIsType(owner, "cst", "Ljava/lang/Object;", "java/lang/String")
+        val cst = instruction.text
+        if (cst == "*") {
+            return true
+        }
+        if (!cst.startsWith("\"") || !cst.endsWith("\"")) {
+            writer.fail()
+            return true
+        }
+        writer.fieldEquals(owner, "cst", "Ljava/lang/Object;", cst.substring(1, cst.length() - 1))
+        return true
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(Opcodes.LDC)
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         val cst = instruction.params.join(" ");
         return LdcInsnNode(Utils.parseConstant(cst))
@@ -65,6 +90,14 @@ public class PushStringInstruction : InstructionHandler {
         return true
     }
 
+    override fun getRequiredStrings(instruction: PatchInstruction): List<String> {
+        val cst = instruction.params.join(" ")
+        if (cst == "*" || !cst.startsWith("\"") || !cst.endsWith("\"")) {
+            return listOf()
+        }
+        return listOf(cst.substring(1, cst.length() - 1))
+    }
+
     override fun validate(instruction: PatchInstruction) {
         val cst = instruction.params.join(" ");
         if (cst == "*") {
@@ -39,6 +39,13 @@ public class ReturnInstruction : InstructionHandler {
         return true
     }
 
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(
+            Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.FRETURN,
+            Opcodes.DRETURN, Opcodes.ARETURN, Opcodes.RETURN
+        )
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         return InsnNode(Type.getMethodType(method.desc).getReturnType().getOpcode(Opcodes.IRETURN))
     }
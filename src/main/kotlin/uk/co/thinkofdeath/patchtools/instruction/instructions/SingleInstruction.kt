@@ -16,12 +16,14 @@
 
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
+import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.InsnNode
 import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.patch.PatchInstruction
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
 
@@ -31,6 +33,16 @@ public class SingleInstruction(private val opcode: Int) : InstructionHandler {
         return insn is InsnNode && insn.getOpcode() == opcode
     }
 
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        writer.isType(Type.getInternalName(javaClass<InsnNode>()))
+        writer.opcode(opcode)
+        return true
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(opcode)
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         return InsnNode(opcode)
     }
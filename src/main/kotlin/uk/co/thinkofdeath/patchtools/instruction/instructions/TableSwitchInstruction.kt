@@ -16,6 +16,7 @@
 
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
+import org.objectweb.asm.Opcodes
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.MethodNode
 import org.objectweb.asm.tree.TableSwitchInsnNode
@@ -33,7 +34,7 @@ public class TableSwitchInstruction : InstructionHandler {
             return false
         }
 
-        if (!Utils.equalOrWild(instruction.params[0], insn.min) || !Utils.equalOrWild(instruction.params[1], insn.max) || !Utils.checkOrSetLabel(scope, method, instruction.params[2], insn.dflt)) {
+        if (!Utils.equalOrWild(instruction, 0, insn.min) || !Utils.equalOrWild(instruction, 1, insn.max) || !Utils.checkOrSetLabel(scope, method, instruction.ident(2), insn.dflt)) {
             return false
         }
 
@@ -47,6 +48,10 @@ public class TableSwitchInstruction : InstructionHandler {
         return true
     }
 
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(Opcodes.TABLESWITCH)
+    }
+
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
         val insnNode = TableSwitchInsnNode(Integer.parseInt(instruction.params[0]), Integer.parseInt(instruction.params[1]), Utils.getLabel(scope, method, instruction.params[2]))
         instruction.meta
@@ -57,6 +57,12 @@ public class TryCatchInstruction : InstructionHandler {
         return true
     }
 
+    override fun compile(instruction: PatchInstruction) {
+        if (instruction.params.size == 4 && instruction.params[3] != "null") {
+            instruction.compileObjectType(3)
+        }
+    }
+
     override fun validate(instruction: PatchInstruction) {
         if (instruction.params.size != 4) {
             throw ValidateException("Incorrect number of arguments for try-catch")
@@ -93,7 +99,7 @@ public class TryCatchInstruction : InstructionHandler {
                         continue
                     }
                 } else {
-                    if (!PatchClass.checkTypes(classSet, scope, Type.getObjectType(`type`), Type.getObjectType(tryNode.`type`))) {
+                    if (!PatchClass.checkTypes(classSet, scope, instruction.patchObjectType(3), Type.getObjectType(tryNode.`type`))) {
                         continue
                     }
                 }
@@ -24,6 +24,7 @@ import org.objectweb.asm.tree.TypeInsnNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.matching.MatchClass
 import uk.co.thinkofdeath.patchtools.matching.MatchGenerator
 import uk.co.thinkofdeath.patchtools.patch.Ident
@@ -40,14 +41,28 @@ public class TypeInstruction(private val opcode: Int) : InstructionHandler {
         if (insn !is TypeInsnNode || insn.getOpcode() != opcode) {
             return false
         }
-        val className = instruction.params[0]
-
-        if (className == "*") {
+        if (instruction.isWild(0)) {
             return true
         }
 
         val `type` = insn.desc
-        return PatchClass.checkTypes(classSet, scope, Type.getObjectType(className), Type.getObjectType(`type`))
+        return PatchClass.checkTypes(classSet, scope, instruction.patchObjectType(0), Type.getObjectType(`type`))
+    }
+
+    override fun compile(instruction: PatchInstruction) {
+        if (instruction.params[0] != "*") {
+            instruction.compileObjectType(0)
+        }
+    }
+
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        writer.isType(Type.getInternalName(javaClass<TypeInsnNode>()))
+        writer.opcode(opcode)
+        return instruction.isWild(0)
+    }
+
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(opcode)
     }
 
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
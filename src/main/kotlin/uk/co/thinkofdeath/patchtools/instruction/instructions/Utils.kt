@@ -20,7 +20,9 @@ import org.objectweb.asm.Label
 import org.objectweb.asm.tree.LabelNode
 import org.objectweb.asm.tree.MethodNode
 import uk.co.thinkofdeath.patchtools.PatchScope
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.patch.Ident
+import uk.co.thinkofdeath.patchtools.patch.PatchInstruction
 import uk.co.thinkofdeath.patchtools.patch.ValidateException
 import java.util.WeakHashMap
 
@@ -43,7 +45,10 @@ object Utils {
     }
 
     public fun checkOrSetLabel(scope: PatchScope?, method: MethodNode, labelName: String, label: LabelNode): Boolean {
-        val ident = Ident(labelName)
+        return checkOrSetLabel(scope, method, Ident(labelName), label)
+    }
+
+    public fun checkOrSetLabel(scope: PatchScope?, method: MethodNode, ident: Ident, label: LabelNode): Boolean {
         if (!ident.isWeak()) {
             if (ident.name != "*") {
                 return false
@@ -75,10 +80,26 @@ object Utils {
         return label
     }
 
+    // Labels that aren't weak can only be wild-cards, weak ones
+    // are left to checkOrSetLabel
+    public fun generateLabel(writer: MatcherWriter, ident: Ident): Boolean {
+        if (ident.isWeak()) {
+            return false
+        }
+        if (ident.name != "*") {
+            writer.fail()
+        }
+        return true
+    }
+
     public fun equalOrWild(`val`: String, other: Int): Boolean {
         return `val` == "*" || Integer.parseInt(`val`) == other
     }
 
+    public fun equalOrWild(instruction: PatchInstruction, index: Int, other: Int): Boolean {
+        return instruction.isWild(index) || instruction.int(index) == other
+    }
+
     private val labels = WeakHashMap<MethodNode, MutableMap<Label, String>>()
 
     public fun printLabel(methodNode: MethodNode, labelNode: LabelNode): String {
@@ -17,12 +17,14 @@
 package uk.co.thinkofdeath.patchtools.instruction.instructions
 
 import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.MethodNode
 import org.objectweb.asm.tree.VarInsnNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.InstructionHandler
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
 import uk.co.thinkofdeath.patchtools.patch.PatchInstruction
 import uk.co.thinkofdeath.patchtools.patch.ValidateException
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
@@ -33,16 +35,21 @@ public class VarInstruction(private val opcode: Int) : InstructionHandler {
         if (insn !is VarInsnNode || insn.getOpcode() != opcode) {
             return false
         }
-        var index = 0
-        var any = false
-        if (instruction.params[0] == "*") {
-            any = true
-        } else {
-            index = Integer.parseInt(instruction.params[0])
+        return instruction.isWild(0) || instruction.int(0) == insn.`var`
+    }
+
+    override fun generate(writer: MatcherWriter, instruction: PatchInstruction): Boolean {
+        val owner = Type.getInternalName(javaClass<VarInsnNode>())
+        writer.isType(owner)
+        writer.opcode(opcode)
+        if (!instruction.isWild(0)) {
+            writer.intField(owner, "var", instruction.int(0))
         }
+        return true
+    }
 
-        val other = insn.`var`
-        return !(!any && other != index)
+    override fun getOpcodes(instruction: PatchInstruction): IntArray? {
+        return intArray(opcode)
     }
 
     override fun create(classSet: ClassSet, scope: PatchScope, instruction: PatchInstruction, method: MethodNode): AbstractInsnNode {
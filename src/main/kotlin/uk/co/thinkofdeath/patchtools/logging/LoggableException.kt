@@ -37,7 +37,7 @@ public class LoggableException(logger: StateLogger) : RuntimeException(LoggableE
                             writer.print("    ")
                             writer.print(clazz.name)
                             writer.print(" ")
-                            writer.println(clazz.matches.size())
+                            writer.println(clazz.matchCount)
                             writer.print("    [ ")
                             writer.print(clazz.matches
                                 .map { it.name }
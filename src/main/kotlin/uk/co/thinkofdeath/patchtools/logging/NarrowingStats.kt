@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.logging
+
+import java.util.LinkedHashMap
+
+// Records how many candidates each index removed from the
+// candidate sets of the patch classes and methods. Shared
+// between a logger and its children so may be written to
+// from multiple threads
+public class NarrowingStats {
+
+    private val entries = LinkedHashMap<String, Entry>()
+
+    public fun record(element: String, index: String, before: Int, after: Int) {
+        synchronized(entries) {
+            val key = element + " (" + index + ")"
+            val entry = entries.getOrPut(key, { Entry(element, index) })
+            entry.before += before
+            entry.after += after
+        }
+    }
+
+    public fun getEntries(): List<Entry> {
+        synchronized(entries) {
+            return entries.values().toList()
+        }
+    }
+
+    override fun toString(): String {
+        val builder = StringBuilder()
+        for (entry in getEntries()) {
+            builder.append(entry.element)
+                .append(" ")
+                .append(entry.index)
+                .append(": ")
+                .append(entry.before)
+                .append(" -> ")
+                .append(entry.after)
+                .append('\n')
+        }
+        return builder.toString()
+    }
+
+    public class Entry(public val element: String, public val index: String) {
+        public var before: Int = 0
+        public var after: Int = 0
+    }
+}
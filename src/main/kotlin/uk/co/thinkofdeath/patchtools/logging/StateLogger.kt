@@ -29,6 +29,7 @@ public class StateLogger {
 
     var groups = LinkedHashMap<MatchGroup, LoggedGroup>()
     var failedTicks: Long = 0
+    var stats = NarrowingStats()
     var writer = StringWriter()
     private var currentLevel = 0
     private val isActive = System.getProperty("patchLogging") != null
@@ -67,6 +68,22 @@ public class StateLogger {
         return PrintWriter(writer)
     }
 
+    // Loggers aren't shared between threads, instead each task
+    // logs to its own child which is appended back once the
+    // task is done
+    public fun createChild(): StateLogger {
+        val child = StateLogger()
+        child.groups = groups
+        child.stats = stats
+        return child
+    }
+
+    public fun append(child: StateLogger) {
+        synchronized(this) {
+            writer.write(child.writer.toString())
+        }
+    }
+
     class object {
 
         public fun typeMismatch(required: Type, got: Type): () -> String {
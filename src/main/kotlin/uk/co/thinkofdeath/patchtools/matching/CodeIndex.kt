@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.MethodNode
+import uk.co.thinkofdeath.patchtools.wrappers.ClassIndex
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
+import uk.co.thinkofdeath.patchtools.wrappers.ClassWrapper
+
+import java.util.HashMap
+import java.util.HashSet
+
+// Walks the code of every class in the set once and fills in
+// both instruction indexes. Only built when a patch method has
+// strings or references to look for. Classes whose code hasn't
+// been needed yet are read straight from their class file and
+// the code is thrown away again, so building this doesn't keep
+// the bodies of every method around
+public class CodeIndex(private val classSet: ClassSet) : ClassIndex {
+
+    // The class that declares each method
+    private val declaring = HashMap<MethodNode, ClassNode>()
+    public val strings: StringIndex = StringIndex(declaring)
+    public val references: ReferenceIndex = ReferenceIndex(declaring)
+    // The methods each class had when it was walked
+    private val byClass = HashMap<String, List<MethodNode>>()
+
+        ;{
+        for (name in classSet.classes(true)) {
+            add(classSet.getClassWrapper(name)!!)
+        }
+    }
+
+    private fun add(wrapper: ClassWrapper) {
+        val owner = wrapper.node
+        byClass[owner.name] = owner.methods.toList()
+        for (node in owner.methods) {
+            declaring[node] = owner
+        }
+        if (wrapper.readCode(ClassKeys(owner))) {
+            return
+        }
+        for (node in owner.methods) {
+            node.instructions.accept(MethodKeys(node))
+        }
+    }
+
+    // Only the rewritten classes are walked again
+    override fun update(classes: Set<String>): Boolean {
+        val removed = HashSet<MethodNode>()
+        for (name in classes) {
+            val old = byClass.remove(name)
+            if (old != null) {
+                removed.addAll(old)
+            }
+        }
+        strings.remove(removed)
+        references.remove(removed)
+        removed.forEach { declaring.remove(it) }
+        for (name in classes) {
+            val wrapper = classSet.getClassWrapper(name)
+            if (wrapper != null && !wrapper.isHidden()) {
+                add(wrapper)
+            }
+        }
+        return true
+    }
+
+    // The methods are visited in the same order the node
+    // lists them in
+    private inner class ClassKeys(private val owner: ClassNode) : ClassVisitor(Opcodes.ASM5) {
+        private var index = 0
+
+        override fun visitMethod(access: Int, name: String?, desc: String?, signature: String?, exceptions: Array<String>?): MethodVisitor? {
+            return MethodKeys(owner.methods[index++])
+        }
+    }
+
+    private inner class MethodKeys(private val node: MethodNode) : MethodVisitor(Opcodes.ASM5) {
+
+        override fun visitLdcInsn(cst: Any?) {
+            if (cst is String) {
+                strings.add(node, cst)
+            }
+        }
+
+        override fun visitMethodInsn(opcode: Int, owner: String?, name: String?, desc: String?, itf: Boolean) {
+            references.add(node, ReferenceIndex.methodKey(opcode, owner!!, null))
+            references.add(node, ReferenceIndex.methodKey(opcode, owner, name))
+        }
+
+        override fun visitFieldInsn(opcode: Int, owner: String?, name: String?, desc: String?) {
+            references.add(node, ReferenceIndex.fieldKey(opcode, owner!!, null))
+            references.add(node, ReferenceIndex.fieldKey(opcode, owner, name))
+        }
+    }
+
+    class object {
+        public val KEY: String = "code"
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.MethodNode
+
+import java.util.HashMap
+import java.util.HashSet
+
+// Maps keys taken from the instructions of every method in
+// the class set to the methods containing them. A patch method
+// has to match all of its instructions so only methods that
+// contain the key of every one of them can match. The methods
+// are walked by CodeIndex, which also keeps the class that
+// declares each of them
+public abstract class InstructionIndex(private val declaring: Map<MethodNode, ClassNode>) {
+
+    private val methods = HashMap<String, MutableSet<MethodNode>>()
+
+    fun add(node: MethodNode, key: String) {
+        methods.getOrPut(key, { HashSet() }).add(node)
+    }
+
+    // Forgets the methods, their class was rewritten
+    fun remove(nodes: Set<MethodNode>) {
+        if (nodes.isEmpty()) return
+        val it = methods.values().iterator()
+        while (it.hasNext()) {
+            val set = it.next()
+            set.removeAll(nodes)
+            if (set.isEmpty()) {
+                it.remove()
+            }
+        }
+    }
+
+    public fun contains(node: MethodNode, keys: Set<String>): Boolean {
+        return keys.all { methods[it]?.contains(node) ?: false }
+    }
+
+    // Returns the classes that declare a method containing every
+    // one of the keys. Classes inheriting the method aren't
+    // included, StructureIndex.inherits checks for those
+    public fun declarers(keys: Set<String>): Set<ClassNode> {
+        val sets = keys.map { methods[it] ?: setOf<MethodNode>() }
+        val smallest = sets.minBy { it.size() }
+        if (smallest == null) {
+            return setOf()
+        }
+        return smallest
+            .filter { node -> sets.all { node in it } }
+            .map { declaring[it]!! }
+            .toHashSet()
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+// A first in first out queue of ints that doesn't box them
+public class IntQueue {
+
+    private var values = IntArray(16)
+    private var head = 0
+    private var size = 0
+
+    public fun add(value: Int) {
+        if (size == values.size) {
+            val grown = IntArray(values.size * 2)
+            for (i in 0..size - 1) {
+                grown[i] = values[(head + i) % values.size]
+            }
+            values = grown
+            head = 0
+        }
+        values[(head + size) % values.size] = value
+        size++
+    }
+
+    public fun peek(): Int {
+        return values[head]
+    }
+
+    public fun poll(): Int {
+        val value = values[head]
+        head = (head + 1) % values.size
+        size--
+        return value
+    }
+
+    public fun isEmpty(): Boolean {
+        return size == 0
+    }
+}
@@ -21,7 +21,7 @@ import uk.co.thinkofdeath.patchtools.logging.StateLogger
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
 
 import java.util.ArrayList
-import java.util.HashSet
+import java.util.BitSet
 
 public class MatchClass(public val name: String) {
     public var superClass: MatchClass? = null
@@ -35,8 +35,27 @@ public class MatchClass(public val name: String) {
     val methods = ArrayList<MatchMethod>()
     val fields = ArrayList<MatchField>()
 
-    val matches = ArrayList<ClassNode>()
-    private val checkedClasses = HashSet<ClassNode>()
+    // Set by the group before any matches are added, the fields
+    // and methods use them too
+    var ids: NodeIds? = null
+
+    // The ids of the matches in the order they were first added.
+    // Removing a match only clears it from the set, the ids that
+    // aren't in the set any more are skipped when reading this
+    private var added = IntArray(16)
+    private var addedSize = 0
+    private val listed = BitSet()
+    private val matchSet = BitSet()
+    public var matchCount: Int = 0
+        private set
+    private val checkedClasses = BitSet()
+    // Each match is queued once when it is added so finding
+    // the next one to check doesn't require a scan over every
+    // match
+    private val unchecked = IntQueue()
+    // Whether every class of the right shape has been added
+    // as a match
+    var seeded = false
 
     public fun addInterface(matchClass: MatchClass) {
         interfaces.add(matchClass)
@@ -60,32 +79,72 @@ public class MatchClass(public val name: String) {
         }
     }
 
+    private fun getIds(): NodeIds {
+        return ids ?: throw IllegalStateException(name + " isn't part of a group")
+    }
+
+    // The current matches in the order they were added
+    public val matches: List<ClassNode>
+        get() {
+            val ids = ids
+            if (ids == null) return listOf()
+            val list = ArrayList<ClassNode>(matchCount)
+            for (i in 0..addedSize - 1) {
+                if (matchSet.get(added[i])) {
+                    list.add(ids.getClass(added[i]))
+                }
+            }
+            return list
+        }
+
     public fun addMatch(classNode: ClassNode) {
-        if (!checkedClasses.contains(classNode) && !matches.contains(classNode)) {
-            matches.add(classNode)
+        val id = getIds().classId(classNode)
+        if (!checkedClasses.get(id) && !matchSet.get(id)) {
+            matchSet.set(id)
+            matchCount++
+            if (!listed.get(id)) {
+                listed.set(id)
+                if (addedSize == added.size) {
+                    added = added.copyOf(addedSize * 2)
+                }
+                added[addedSize++] = id
+            }
+            unchecked.add(id)
         }
     }
 
     public fun removeMatch(classNode: ClassNode) {
-        matches.remove(classNode)
+        val ids = ids
+        if (ids == null) return
+        val id = ids.classId(classNode)
+        if (matchSet.get(id)) {
+            matchSet.clear(id)
+            matchCount--
+        }
     }
 
-    public fun addChecked(classNode: ClassNode) {
-        checkedClasses.add(classNode)
+    public fun isMatch(classNode: ClassNode): Boolean {
+        val ids = ids
+        return ids != null && matchSet.get(ids.classId(classNode))
     }
 
-    public fun hasUnchecked(): Boolean {
-        return matches.any { it !in checkedClasses }
+    public fun addChecked(classNode: ClassNode) {
+        checkedClasses.set(getIds().classId(classNode))
     }
 
-    public fun getUncheckedClasses(): Array<ClassNode> {
-        return matches
-            .filter { it !in checkedClasses }
-            .copyToArray()
+    public fun hasUnchecked(): Boolean {
+        // Skip anything removed since it was queued
+        while (!unchecked.isEmpty() && !matchSet.get(unchecked.peek())) {
+            unchecked.poll()
+        }
+        return !unchecked.isEmpty()
     }
 
-    public fun hasChecked(length: Int): Boolean {
-        return checkedClasses.size() == length
+    public fun pollUnchecked(): ClassNode? {
+        if (!hasUnchecked()) {
+            return null
+        }
+        return getIds().getClass(unchecked.poll())
     }
 
     override fun equals(other: Any?): Boolean {
@@ -131,9 +190,10 @@ public class MatchClass(public val name: String) {
         }
         methods.forEach {
             val m = it
-            node.methods.forEach {
-                m.addMatch(node, it)
-            }
+            m.getAnchored(logger, classSet, node)
+                .forEach {
+                    m.addMatch(node, it)
+                }
         }
 
         logger.unindent()
@@ -27,69 +27,72 @@ import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
 public class MatchField(public val owner: MatchClass, public val name: String, public val desc: String) {
     public var type: Type? = null
 
-    private val matchedFields = hashSetOf<FieldPair>()
-    private val matchedFieldsByOwner = hashMapOf<ClassNode, MutableSet<FieldPair>>()
-    private val checkedFields = hashSetOf<FieldPair>()
+    // Created once the owner has been given the ids of the class
+    // set, which happens before anything is added
+    private var domain: MemberDomain<FieldNode>? = null
+
+    private fun getDomain(): MemberDomain<FieldNode> {
+        if (domain == null) {
+            val ids = owner.ids ?: throw IllegalStateException(owner.name + "." + name + " isn't part of a group")
+            domain = MemberDomain(ids, ids.fields)
+        }
+        return domain!!
+    }
 
     public fun addMatch(owner: ClassNode, fieldNode: FieldNode) {
-        val pair = FieldPair(owner, fieldNode)
-        if (!checkedFields.contains(pair) &&
-            !(matchedFieldsByOwner[owner]?.contains(pair) ?: false)) {
-            matchedFields.add(pair)
-            val fs = matchedFieldsByOwner[owner]
-            if (fs == null) {
-                matchedFieldsByOwner[owner] = hashSetOf(pair)
-            } else {
-                fs.add(pair)
-            }
-        }
+        getDomain().add(owner, fieldNode)
     }
 
     public fun removeMatch(owner: ClassNode, fieldNode: FieldNode) {
-        val pair = FieldPair(owner, fieldNode)
-        matchedFields.remove(pair)
-        val fs = matchedFieldsByOwner[owner]
-        if (fs != null) {
-            fs.remove(pair)
-            if (fs.empty) {
-                matchedFieldsByOwner.remove(owner)
-            }
-        }
+        domain?.remove(owner, fieldNode)
     }
 
     public fun removeMatch(clazz: ClassNode) {
-        val fs = matchedFieldsByOwner[clazz]
-        if (fs != null) {
-            matchedFields.removeAll(fs)
-            matchedFieldsByOwner.remove(clazz)
-        }
+        domain?.remove(clazz)
     }
 
     public fun addChecked(owner: ClassNode, fieldNode: FieldNode) {
-        checkedFields.add(FieldPair(owner, fieldNode))
+        getDomain().addChecked(owner, fieldNode)
     }
 
     public fun hasUnchecked(): Boolean {
-        return matchedFields.any { it !in checkedFields }
+        return domain?.hasUnchecked() ?: false
     }
 
-    public fun getUncheckedMethods(): Array<FieldPair> {
-        return matchedFields
-            .filter { it !in checkedFields }
-            .copyToArray()
+    public fun pollUnchecked(): FieldPair? {
+        val domain = domain
+        if (domain == null) {
+            return null
+        }
+        val id = domain.pollUnchecked()
+        if (id == -1) {
+            return null
+        }
+        return FieldPair(domain.getOwner(id), domain.getNode(id))
     }
 
     public fun getMatches(): List<FieldNode> {
-        return matchedFields
-            .map { it.node }
+        return domain?.getMatches() ?: listOf()
     }
 
     public fun getMatches(owner: ClassNode): List<FieldNode> {
-        return matchedFieldsByOwner[owner].map { it.node }
+        return domain?.getMatches(owner) ?: listOf()
+    }
+
+    public fun getMatchedPairs(): List<FieldPair> {
+        val domain = domain
+        if (domain == null) {
+            return listOf()
+        }
+        return domain.getIds().map { FieldPair(domain.getOwner(it), domain.getNode(it)) }
+    }
+
+    public fun countMatches(owner: ClassNode): Int {
+        return domain?.count(owner) ?: 0
     }
 
     public fun usesNode(clazz: ClassNode): Boolean {
-        return clazz in matchedFieldsByOwner
+        return domain?.uses(clazz) ?: false
     }
 
     public fun check(logger: StateLogger, classSet: ClassSet, group: MatchGroup, pair: FieldPair) {
@@ -19,19 +19,26 @@ package uk.co.thinkofdeath.patchtools.matching
 import org.objectweb.asm.Type
 import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.logging.LoggableException
+import uk.co.thinkofdeath.patchtools.logging.NarrowingStats
 import uk.co.thinkofdeath.patchtools.logging.StateLogger
 import uk.co.thinkofdeath.patchtools.patch.*
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
 
 import java.util.*
+import java.util.concurrent.RecursiveTask
 
-public class MatchGenerator(private val classSet: ClassSet, private val patchClasses: PatchClasses, private val scope: PatchScope) {
+public class MatchGenerator(private val classSet: ClassSet,
+                            private val patchClasses: PatchClasses,
+                            private val scope: PatchScope,
+                            private val options: MatchOptions = MatchOptions()) {
     private val groups = ArrayList<MatchGroup>()
 
-    private val state = hashMapOf<Any, Int>()
-
     private val logger = StateLogger()
 
+    // How much each index narrowed the candidates down
+    public val stats: NarrowingStats
+        get() = logger.stats
+
         ;{
 
         try {
@@ -45,30 +52,6 @@ public class MatchGenerator(private val classSet: ClassSet, private val patchCla
             for (it in groups) {
                 logger.createGroup(it)
             }
-
-            // As a base every class would be matched to every
-            // class in the class set, for patches with more
-            // than one class this becomes a large number of
-            // tests to work with. To reduce the number of
-            // groups only the first class is given every
-            // class in the set and then the patch is partially
-            // tested (without the checking of class names just
-            // types and instructions) to reduce the number of
-            // classes, the references from the remaining classes
-            // are used to match the others up. With patches that
-            // have a good amount of information this normally
-            // leaves one or two classes per a patch class
-            reduceGroups()
-
-            // Setup the initial state
-
-            groups
-                .flatMap { it.getClasses() }
-                .forEach {
-                    state.put(it, 0)
-                    it.methods.forEach { state.put(it, 0) }
-                    it.fields.forEach { state.put(it, 0) }
-                }
         } catch (e: Exception) {
             e.printStackTrace()
             e.printStackTrace(logger.getPrintWriter())
@@ -77,128 +60,168 @@ public class MatchGenerator(private val classSet: ClassSet, private val patchCla
 
     }
 
-    private fun reduceGroups() {
-        for (group in groups) {
-            val first = group.first
-
-
-            // Add every class as a match to the first
-            // patch class in the set
-            classSet.classes(true)
-                .map { classSet.getClassWrapper(it)!! }
-                .map { it.node }
-                .forEach {
-                    first.addMatch(it)
+    private fun reduceGroup(group: MatchGroup, logger: StateLogger) {
+        val first = group.first
+
+        // Add every class with the right shape as a match
+        // to the first patch class in the set
+        seed(first, logger)
+
+        // Marks whether we made any changes in the last
+        // cycle
+        var doneSomething = true
+        while (doneSomething) {
+            doneSomething = false
+            while (true) {
+                val clazz = group.getClasses()
+                    .filter { it.hasUnchecked() }
+                    .first
+                if (clazz == null) {
+                    break
                 }
+                doneSomething = true
+                logger.println("Checking " + clazz.name)
+                logger.indent()
 
-            logger.println("Adding all classes to " + first.name)
-
-            // Marks whether we made any changes in the last
-            // cycle
-            var doneSomething = true
-            while (doneSomething) {
-                doneSomething = false
                 while (true) {
-                    val clazz = group.getClasses()
-                        .filter { it.hasUnchecked() }
-                        .first
-                    if (clazz == null) {
+                    val next = clazz.pollUnchecked()
+                    if (next == null) {
                         break
                     }
-                    doneSomething = true
-                    logger.println("Checking " + clazz.name)
-                    logger.indent()
+                    clazz.check(logger, classSet, next)
+                }
 
-                    val unchecked = clazz.getUncheckedClasses()
-                    unchecked.forEach {
-                        clazz.check(logger, classSet, it)
-                    }
+                logger.unindent()
+            }
 
-                    logger.unindent()
+            while (true) {
+                val field = group.getClasses()
+                    .flatMap { it.fields }
+                    .filter { it.hasUnchecked() }
+                    .first
+                if (field == null) {
+                    break
                 }
+                doneSomething = true
+                logger.println("Checking " + field.owner.name + "." + field.name)
+                logger.indent()
 
                 while (true) {
-                    val field = group.getClasses()
-                        .flatMap { it.fields }
-                        .filter { it.hasUnchecked() }
-                        .first
-                    if (field == null) {
+                    val next = field.pollUnchecked()
+                    if (next == null) {
                         break
                     }
-                    doneSomething = true
-                    logger.println("Checking " + field.owner.name + "." + field.name)
-                    logger.indent()
+                    field.check(logger, classSet, group, next)
+                }
+                logger.unindent()
+            }
 
-                    val unchecked = field.getUncheckedMethods()
-                    unchecked.forEach {
-                        field.check(logger, classSet, group, it)
-                    }
-                    logger.unindent()
+            while (true) {
+                val method = group.getClasses()
+                    .flatMap { it.methods }
+                    .filter { it.hasUnchecked() }
+                    .first
+                if (method == null) {
+                    break
                 }
+                doneSomething = true
+                logger.println("Checking " + method.owner.name + "::" + method.name + method.desc)
+                logger.indent()
 
                 while (true) {
-                    val method = group.getClasses()
-                        .flatMap { it.methods }
-                        .filter { it.hasUnchecked() }
-                        .first
-                    if (method == null) {
+                    val next = method.pollUnchecked()
+                    if (next == null) {
                         break
                     }
-                    doneSomething = true
-                    logger.println("Checking " + method.owner.name + "::" + method.name + method.desc)
-                    logger.indent()
+                    method.check(logger, classSet, patchClasses, group, next)
+                }
 
-                    val unchecked = method.getUncheckedMethods()
-                    unchecked.forEach {
-                        method.check(logger, classSet, patchClasses, group, it)
-                    }
+                logger.unindent()
+            }
 
-                    logger.unindent()
+            if (!doneSomething) {
+                // Check for classes without a match and as a last ditch
+                // method check against the rest of the classes
+                val anyUnmatched = group.getClasses()
+                    .filter { it.matchCount == 0 }
+                    .any { !it.seeded }
+
+                if (anyUnmatched) {
+                    group.getClasses()
+                        .filter { it.matchCount == 0 }
+                        .filter { !it.seeded }
+                        .forEach { seed(it, logger) }
+                    doneSomething = true
                 }
+            }
+        }
 
-                if (!doneSomething) {
-                    val classes = classSet.classes(true)
-                    // Check for classes without a match and as a last ditch
-                    // method check against the rest of the classes
-                    val anyUnmatched = group.getClasses()
-                        .filter { it.matches.isEmpty() }
-                        .any { !it.hasChecked(classes.size) }
-
-                    if (anyUnmatched) {
-                        group.getClasses()
-                            .filter { it.matches.isEmpty() }
-                            .filter { !it.hasChecked(classes.size) }
-                            .forEach {
-                                val c = it
-                                classes
-                                    .map { classSet.getClassWrapper(it)!! }
-                                    .map { it.node }
-                                    .forEach {
-                                        c.addMatch(it)
-                                    }
-                            }
-                        doneSomething = true
-                    }
-                }
+        if (options.propagate) {
+            // Also covers classes missing a match for one of
+            // their fields or methods
+            val before = group.getClasses().map { it.matchCount }
+            Propagator(classSet, patchClasses, group, logger).run()
+            group.getClasses().withIndices().forEach {
+                logger.stats.record(it.second.name, Propagator.KEY, before[it.first], it.second.matchCount)
             }
+            return
+        }
 
-            // Remove incomplete classes
-            for (cls in group.getClasses()) {
-                val matches = ArrayList(cls.matches)
-                matches
-                    .filter {
-                        val clazz = it
-                        cls.methods.any { !it.usesNode(clazz) }
-                            || cls.fields.any { !it.usesNode(clazz) }
-                    }
-                    .forEach {
-                        val clazz = it
-                        cls.removeMatch(clazz)
-                        cls.methods.forEach { it.removeMatch(clazz) }
-                        cls.fields.forEach { it.removeMatch(clazz) }
-                    }
+        // Remove incomplete classes
+        for (cls in group.getClasses()) {
+            cls.matches
+                .filter {
+                    val clazz = it
+                    cls.methods.any { !it.usesNode(clazz) }
+                        || cls.fields.any { !it.usesNode(clazz) }
+                }
+                .forEach {
+                    val clazz = it
+                    cls.removeMatch(clazz)
+                    cls.methods.forEach { it.removeMatch(clazz) }
+                    cls.fields.forEach { it.removeMatch(clazz) }
+                }
+        }
+    }
+
+    private fun seed(cls: MatchClass, logger: StateLogger) {
+        cls.seeded = true
+        // The index is shared between every group and patch
+        // until the class set is changed
+        val index = classSet.getIndex(StructureIndex.KEY, { StructureIndex(classSet) })
+        val pc = patchClasses.getClass(cls.name)
+        var candidates = if (pc != null) {
+            index.candidates(pc)
+        } else {
+            classSet.classes(true).map { classSet.getClassWrapper(it)!!.node }
+        }
+        logger.stats.record(cls.name, StructureIndex.KEY, index.size, candidates.size())
+        // Methods with strings or references to match narrow
+        // things down further to the classes that declare or
+        // inherit a method with all of them
+        if (pc != null) {
+            for (method in pc.methods) {
+                if (method.mode == Mode.ADD) continue
+                if (!method.requiredStrings.isEmpty()) {
+                    val strings = classSet.getIndex(CodeIndex.KEY, { CodeIndex(classSet) }).strings
+                    val declarers = strings.declarers(method.requiredStrings)
+                    val before = candidates.size()
+                    candidates = candidates.filter { index.inherits(it, declarers) }
+                    logger.stats.record(cls.name, StringIndex.KEY, before, candidates.size())
+                }
+                if (!method.requiredReferences.isEmpty()) {
+                    val references = classSet.getIndex(CodeIndex.KEY, { CodeIndex(classSet) }).references
+                    val declarers = references.declarers(method.requiredReferences)
+                    val before = candidates.size()
+                    candidates = candidates.filter { index.inherits(it, declarers) }
+                    logger.stats.record(cls.name, ReferenceIndex.KEY, before, candidates.size())
+                }
             }
         }
+        logger.println("Adding " + candidates.size() + " of " + index.size + " classes to " + cls.name)
+        candidates.forEach {
+            cls.addMatch(it)
+        }
     }
 
     private fun generateGroups() {
@@ -259,6 +282,8 @@ public class MatchGenerator(private val classSet: ClassSet, private val patchCla
 
                             val mTemp = MatchMethod(mc, it.ident.name, it.descRaw)
                             val method = mc.addMethod(mTemp)
+                            method.requiredStrings.addAll(it.requiredStrings)
+                            method.requiredReferences.addAll(it.requiredReferences)
 
                             if (mTemp == method) {
                                 for (type in desc.getArgumentTypes()) {
@@ -300,31 +325,44 @@ public class MatchGenerator(private val classSet: ClassSet, private val patchCla
             }
     }
 
+    // Reduces every group and builds its solver without
+    // searching, so the search can be run on its own
+    public fun prepare(): List<MatchSolver> {
+        return groups.map {
+            val groupLogger = logger.createChild()
+            reduceGroup(it, groupLogger)
+            MatchSolver(classSet, patchClasses, it, groupLogger, options)
+        }
+    }
+
     public fun apply(): PatchScope {
         try {
-            val scopes = ArrayList<PatchScope>()
-            @groupCheck for (group in groups) {
-
-                val tickList = generateTickList(group)
-
-                var tick: Long = 0
-
-                do {
-                    tick++
-
-                    val testScope = generateScope(group, PatchScope(scope))
-                    if (testScope == null) continue
-
-                    if (test(group, testScope)) {
-                        scopes.add(testScope)
-                        continue@groupCheck
-                    }
-                } while (tick(tickList))
-                logger.failedTicks(tick)
-                throw LoggableException(logger)
+            // Groups share no classes with each other so each one
+            // is reduced and searched as its own task. The results
+            // are collected in group order so the merged scope and
+            // the log don't depend on which task finished first
+            val tasks = groups.map { GroupTask(it) }
+            if (options.parallelGroups && tasks.size() > 1) {
+                tasks.forEach { options.pool.execute(it) }
+            } else {
+                tasks.forEach { it.invoke() }
             }
+
             val finalScope = PatchScope(scope)
-            scopes.forEach { finalScope.merge(it) }
+            for (task in tasks) {
+                val result = task.join()
+                logger.append(result.logger)
+                val error = result.error
+                if (error != null) {
+                    throw error
+                }
+                val found = result.scope
+                if (found == null) {
+                    logger.failedTicks(result.ticks)
+                    throw LoggableException(logger)
+                }
+                finalScope.merge(found)
+            }
             return finalScope
         } catch (e: Exception) {
             e.printStackTrace(logger.getPrintWriter())
@@ -336,117 +374,41 @@ public class MatchGenerator(private val classSet: ClassSet, private val patchCla
 
     }
 
-    private fun test(group: MatchGroup, scope: PatchScope): Boolean {
-        val classes = group.getClasses()
-            .map { patchClasses.getClass(it.name) }
-            .filterNotNull()
-        // Slightly faster to do it this way since the instruction checking is the heaviest
-        return classes.all { it.checkAttributes(logger, scope, classSet) }
-            && classes.all { it.checkFields(logger, scope, classSet) }
-            && classes.all { it.checkMethods(logger, scope, classSet) }
-            && classes.all { it.checkMethodsInstructions(logger, scope, classSet) }
-    }
-
-    private fun generateTickList(group: MatchGroup): List<Any> {
-        val tickList = ArrayList<Any>()
-        group.getClasses().forEach {
-            tickList.add(it)
-            it.fields.forEach { tickList.add(it) }
-            it.methods.forEach { tickList.add(it) }
-        }
-        return tickList
-    }
-
-    private fun tick(tickList: List<Any>): Boolean {
-        var i = tickList.size() - 1
-        while (i >= 0) {
-            val o = tickList.get(i)
-            var index = state.get(o) + 1
-            if (o is MatchClass) {
-                if (index >= o.matches.size()) {
-                    index = 0
-                    state.put(o, index)
-                    i--
-                    continue
-                }
-                state.put(o, index)
-                return true
-            } else if (o is MatchMethod) {
-                val matchClass = nearestClass(tickList, i)
-                val cls = matchClass.matches.get(state.get(matchClass))
-                if (index >= o.getMatches(cls).size()) {
-                    index = 0
-                    state.put(o, index)
-                    i--
-                    continue
-                }
-                state.put(o, index)
-                return true
-            } else if (o is MatchField) {
-                val matchClass = nearestClass(tickList, i)
-                val cls = matchClass.matches.get(state.get(matchClass))
-                if (index >= o.getMatches(cls).size()) {
-                    index = 0
-                    state.put(o, index)
-                    i--
-                    continue
-                }
-                state.put(o, index)
-                return true
+    private inner class GroupTask(private val group: MatchGroup) : RecursiveTask<GroupResult>() {
+
+        override fun compute(): GroupResult {
+            val groupLogger = logger.createChild()
+            try {
+                // As a base every class would be matched to every
+                // class in the class set, for patches with more
+                // than one class this becomes a large number of
+                // tests to work with. To reduce the number of
+                // groups only the first class is given every
+                // class in the set and then the patch is partially
+                // tested (without the checking of class names just
+                // types and instructions) to reduce the number of
+                // classes, the references from the remaining classes
+                // are used to match the others up. With patches that
+                // have a good amount of information this normally
+                // leaves one or two classes per a patch class
+                reduceGroup(group, groupLogger)
+
+                // Each class, field and method is bound one at a time
+                // and the checks that only depend on what has been
+                // bound so far are run straight away. This means a bad
+                // choice early on is only found once instead of once
+                // for every combination of the later choices
+                val solver = MatchSolver(classSet, patchClasses, group, groupLogger, options)
+                val found = solver.solve(scope)
+                return GroupResult(groupLogger, found, solver.ticks, null)
+            } catch (e: Exception) {
+                e.printStackTrace(groupLogger.getPrintWriter())
+                return GroupResult(groupLogger, null, 0, e)
             }
         }
-        return false
     }
 
-    private fun nearestClass(tickList: List<Any>, index: Int): MatchClass {
-        var i = index
-        while (i >= 0) {
-            if (tickList.get(i) is MatchClass) {
-                return tickList.get(i) as MatchClass
-            }
-            i--
-        }
-        throw IllegalStateException()
-    }
-
-    private fun generateScope(group: MatchGroup, scope: PatchScope): PatchScope? {
-        for (c in group.getClasses()) {
-
-            if (c.matches.isEmpty()) {
-                throw LoggableException(logger)
-            }
-
-            val cls = classSet.getClassWrapper(c.matches.get(state.get(c)).name)!!
-            if (scope.putClass(cls, c.name)) {
-                return null
-            }
-
-            for (f in c.fields) {
-                val matches = f.getMatches(cls.node)
-                if (matches.isEmpty()) {
-                    throw LoggableException(logger)
-                }
-                val node = matches.get(state.get(f))
-                val met = cls.getField(node.name, node.desc)!!
-                if (scope.putField(met, f.name, f.desc)) {
-                    return null
-                }
-            }
-
-            for (m in c.methods) {
-                val matches = m.getMatches(cls.node)
-                if (matches.isEmpty()) {
-                    throw LoggableException(logger)
-                }
-                val node = matches.get(state.get(m))
-                val met = cls.getMethod(node.name, node.desc)!!
-                if (scope.putMethod(met, m.name, m.desc)) {
-                    return null
-                }
-            }
-        }
-        return scope
-    }
+    private class GroupResult(val logger: StateLogger, val scope: PatchScope?, val ticks: Long, val error: Exception?)
 
     private fun addToVisited(visited: MutableMap<MatchClass, MatchGroup>, visitList: Stack<MatchClass>, matchClass: MatchClass, group: MatchGroup) {
         if (patchClasses.getClass(matchClass.name) == null) return
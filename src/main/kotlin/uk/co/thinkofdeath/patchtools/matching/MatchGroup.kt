@@ -21,6 +21,8 @@ import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
 public class MatchGroup(private val classSet: ClassSet) {
 
     private val classes = hashMapOf<String, MatchClass>()
+    // Shared by every group until the class set changes
+    private val ids = classSet.getIndex(NodeIds.KEY, { NodeIds(classSet) })
     public val first: MatchClass
         get() = classes.values().first()
 
@@ -31,6 +33,7 @@ public class MatchGroup(private val classSet: ClassSet) {
         }
         if (!classes.containsKey(cls.name)) {
             classes.put(cls.name, cls)
+            cls.ids = ids
         }
     }
 
@@ -42,10 +45,12 @@ public class MatchGroup(private val classSet: ClassSet) {
         return classes.values()
     }
 
+    // Classes outside of the group can still be given matches
+    // so they get the ids as well
     public fun getClass(owner: MatchClass): MatchClass {
-        var o = classes.values()
-            .filter { it == owner }
-            .first ?: owner
-        return o
+        if (owner.ids == null) {
+            owner.ids = ids
+        }
+        return classes[owner.name] ?: owner
     }
 }
@@ -29,10 +29,15 @@ public class MatchMethod(public val owner: MatchClass, public val name: String,
     val arguments = ArrayList<Type>()
     public var returnType: Type? = null
         private set
+    // Strings the patch method loads and the methods and
+    // fields it uses, only methods with all of them are worth
+    // checking
+    val requiredStrings = HashSet<String>()
+    val requiredReferences = HashSet<String>()
 
-    private val matchedMethods = hashSetOf<MethodPair>()
-    private val matchedMethodsByOwner = hashMapOf<ClassNode, MutableSet<MethodPair>>()
-    private val checkedMethods = hashSetOf<MethodPair>()
+    // Created once the owner has been given the ids of the class
+    // set, which happens before anything is added
+    private var domain: MemberDomain<MethodNode>? = null
 
     public fun addArgument(type: Type) {
         arguments.add(type)
@@ -42,65 +47,104 @@ public class MatchMethod(public val owner: MatchClass, public val name: String,
         returnType = type
     }
 
-    public fun addMatch(owner: ClassNode, methodNode: MethodNode) {
-        val pair = MethodPair(owner, methodNode)
-        if (!checkedMethods.contains(pair) &&
-            !(matchedMethodsByOwner[owner]?.contains(pair) ?: false)) {
-            matchedMethods.add(MethodPair(owner, methodNode))
-            val ms = matchedMethodsByOwner[owner]
-            if (ms == null) {
-                matchedMethodsByOwner[owner] = hashSetOf(pair)
-            } else {
-                ms.add(pair)
-            }
+    private fun getDomain(): MemberDomain<MethodNode> {
+        if (domain == null) {
+            val ids = owner.ids ?: throw IllegalStateException(toString() + " isn't part of a group")
+            domain = MemberDomain(ids, ids.methods)
         }
+        return domain!!
+    }
+
+    public fun addMatch(owner: ClassNode, methodNode: MethodNode) {
+        getDomain().add(owner, methodNode)
     }
 
     public fun removeMatch(owner: ClassNode, methodNode: MethodNode) {
-        val pair = MethodPair(owner, methodNode)
-        matchedMethods.remove(pair)
-        val ms = matchedMethodsByOwner[owner]
-        if (ms != null) {
-            ms.remove(pair)
-            if (ms.empty) {
-                matchedMethodsByOwner.remove(owner)
-            }
-        }
+        domain?.remove(owner, methodNode)
     }
 
     public fun removeMatch(clazz: ClassNode) {
-        val ms = matchedMethodsByOwner[clazz]
-        if (ms != null) {
-            matchedMethods.removeAll(ms)
-            matchedMethodsByOwner.remove(clazz)
-        }
+        domain?.remove(clazz)
     }
 
     public fun addChecked(owner: ClassNode, methodNode: MethodNode) {
-        checkedMethods.add(MethodPair(owner, methodNode))
+        getDomain().addChecked(owner, methodNode)
     }
 
     public fun hasUnchecked(): Boolean {
-        return matchedMethods.any { it !in checkedMethods }
+        return domain?.hasUnchecked() ?: false
     }
 
-    public fun getUncheckedMethods(): Array<MethodPair> {
-        return matchedMethods
-            .filter { it !in checkedMethods }
-            .copyToArray()
+    public fun pollUnchecked(): MethodPair? {
+        val domain = domain
+        if (domain == null) {
+            return null
+        }
+        val id = domain.pollUnchecked()
+        if (id == -1) {
+            return null
+        }
+        return MethodPair(domain.getOwner(id), domain.getNode(id))
     }
 
     public fun getMatches(): List<MethodNode> {
-        return matchedMethods
-            .map { it.node }
+        return domain?.getMatches() ?: listOf()
     }
 
     public fun getMatches(owner: ClassNode): List<MethodNode> {
-        return matchedMethodsByOwner[owner].map { it.node }
+        return domain?.getMatches(owner) ?: listOf()
+    }
+
+    public fun getMatchedPairs(): List<MethodPair> {
+        val domain = domain
+        if (domain == null) {
+            return listOf()
+        }
+        return domain.getIds().map { MethodPair(domain.getOwner(it), domain.getNode(it)) }
+    }
+
+    public fun countMatches(owner: ClassNode): Int {
+        return domain?.count(owner) ?: 0
     }
 
     public fun usesNode(clazz: ClassNode): Boolean {
-        return clazz in matchedMethodsByOwner
+        return domain?.uses(clazz) ?: false
+    }
+
+    public fun isAnchored(classSet: ClassSet, node: MethodNode): Boolean {
+        if (!requiredStrings.isEmpty()
+            && !getStringIndex(classSet).contains(node, requiredStrings)) {
+            return false
+        }
+        return requiredReferences.isEmpty()
+            || getReferenceIndex(classSet).contains(node, requiredReferences)
+    }
+
+    // Returns the methods of the class that could match this
+    // method, recording how many each index ruled out
+    public fun getAnchored(logger: StateLogger, classSet: ClassSet, owner: ClassNode): List<MethodNode> {
+        var nodes: List<MethodNode> = owner.methods
+        if (!requiredStrings.isEmpty()) {
+            val index = getStringIndex(classSet)
+            val before = nodes.size()
+            nodes = nodes.filter { index.contains(it, requiredStrings) }
+            logger.stats.record(toString(), StringIndex.KEY, before, nodes.size())
+        }
+        if (!requiredReferences.isEmpty()) {
+            val index = getReferenceIndex(classSet)
+            val before = nodes.size()
+            nodes = nodes.filter { index.contains(it, requiredReferences) }
+            logger.stats.record(toString(), ReferenceIndex.KEY, before, nodes.size())
+        }
+        return nodes
+    }
+
+    private fun getStringIndex(classSet: ClassSet): StringIndex {
+        return classSet.getIndex(CodeIndex.KEY, { CodeIndex(classSet) }).strings
+    }
+
+    private fun getReferenceIndex(classSet: ClassSet): ReferenceIndex {
+        return classSet.getIndex(CodeIndex.KEY, { CodeIndex(classSet) }).references
     }
 
     public fun check(logger: StateLogger, classSet: ClassSet, patchClasses: PatchClasses, group: MatchGroup, pair: MethodPair) {
@@ -113,6 +157,12 @@ public class MatchMethod(public val owner: MatchClass, public val name: String,
 
         try {
 
+            if (!isAnchored(classSet, node)) {
+                logger.println("Missing required strings or references")
+                removeMatch(pair.owner, node)
+                return
+            }
+
             val matchPairs = ArrayList<MatchPair>()
 
             val type = Type.getMethodType(node.desc)
@@ -162,6 +212,13 @@ public class MatchMethod(public val owner: MatchClass, public val name: String,
                     .first
 
                 if (pm != null) {
+                    classSet.getClassWrapper(pair.owner.name)!!.ensureCode(node)
+                    if (!pm.hasOpcodes(classSet, node)) {
+                        logger.println("Missing required opcodes")
+                        removeMatch(pair.owner, node)
+                        return
+                    }
+
                     logger.println("Entering method")
                     logger.indent()
                     inCode = true
@@ -171,65 +228,20 @@ public class MatchMethod(public val owner: MatchClass, public val name: String,
                         return
                     }
 
-                    val it = node.instructions.iterator()
-                    val referencedClasses = HashSet<ClassNode>()
-                    val referencedMethods = HashSet<MatchMethod.MethodPair>()
-                    val referencedFields = HashSet<MatchField.FieldPair>()
-                    while (it.hasNext()) {
-                        val insn = it.next()
-
-                        if (insn is MethodInsnNode) {
-                            val cls = classSet.getClassWrapper(insn.owner)
-                            if (cls == null || cls.isHidden()) continue
-
-                            referencedClasses.add(cls.node)
-
-                            val wrap = cls.getMethod(insn.name, insn.desc)
-                            if (wrap != null) {
-                                referencedMethods.add(MatchMethod.MethodPair(cls.node, cls.getMethodNode(wrap)!!))
-                            }
-                        } else if (insn is FieldInsnNode) {
-                            val cls = classSet.getClassWrapper(insn.owner)
-                            if (cls == null || cls.isHidden()) continue
-
-                            referencedClasses.add(cls.node)
-
-                            val wrap = cls.getField(insn.name, insn.desc)
-                            if (wrap != null) {
-                                referencedFields.add(MatchField.FieldPair(cls.node, cls.getFieldNode(wrap)!!))
-                            }
-                        } else if (insn is LdcInsnNode) {
-                            if (insn.cst is Type) {
-                                val cls = classSet.getClassWrapper((insn.cst as Type).getInternalName())
-                                if (cls == null || cls.isHidden()) continue
-
-                                referencedClasses.add(cls.node)
-                            }
-                        } else if (insn is TypeInsnNode) {
-                            val desc = insn.desc
-                            val cls = classSet.getClassWrapper(MatchGenerator.getRootType(Type.getObjectType(desc)).getInternalName())
-                            if (cls == null || cls.isHidden()) continue
-
-                            referencedClasses.add(cls.node)
-                        } else if (insn is MultiANewArrayInsnNode) {
-                            val desc = insn.desc
-                            val cls = classSet.getClassWrapper(MatchGenerator.getRootType(Type.getObjectType(desc)).getInternalName())
-                            if (cls == null || cls.isHidden()) continue
-
-                            referencedClasses.add(cls.node)
-                        }
-                    }
+                    val references = classSet.getIndex(MethodReferences.KEY, { MethodReferences.Cache(classSet) })
+                        .get(node)
+                    val referencedClasses = references.classes
+                    val referencedMethods = references.methods
+                    val referencedFields = references.fields
 
                     for (instruction in pm.instructions) {
                         val insn = instruction.instruction
                         if (insn.handler == null || instruction.mode == Mode.ADD) continue
                         insn.handler!!.getReferencedClasses(instruction).forEach {
                             val c = it
+                            // Hidden classes were already left out
                             referencedClasses.forEach {
-                                val wrapper = classSet.getClassWrapper(it.name)!!
-                                if (!wrapper.isHidden()) {
-                                    matchPairs.add(ClassMatch(group.getClass(c), it))
-                                }
+                                matchPairs.add(ClassMatch(group.getClass(c), it))
                             }
 
                         }
@@ -267,6 +279,10 @@ public class MatchMethod(public val owner: MatchClass, public val name: String,
 
     data class MethodPair(public val owner: ClassNode, public val node: MethodNode)
 
+    override fun toString(): String {
+        return owner.name + "::" + name + desc
+    }
+
     override fun equals(other: Any?): Boolean {
         if (this.identityEquals(other)) return true
         if (other == null || javaClass != other.javaClass) return false
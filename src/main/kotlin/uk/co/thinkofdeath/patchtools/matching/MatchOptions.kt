@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import java.util.concurrent.ForkJoinPool
+
+public class MatchOptions {
+    // The pool the match groups of a patch are run on
+    public var pool: ForkJoinPool = ForkJoinPool.commonPool()
+    // Whether independent match groups are reduced and
+    // searched at the same time
+    public var parallelGroups: Boolean = true
+    // Whether the matches of the first class in a group are
+    // split between tasks when searching
+    public var parallelCandidates: Boolean = true
+    // When splitting, whether the match that comes first wins
+    // (the same result as a single thread) or just the first
+    // one to be found
+    public var lowestCandidateWins: Boolean = true
+    // Whether instruction checks are remembered and replayed
+    // when they would read the same bindings again
+    public var cacheChecks: Boolean = true
+    // The order the solver binds the classes, fields and
+    // methods of a group in
+    public var ordering: VariableOrdering = VariableOrdering.MOST_CONSTRAINED
+    // Whether the solver jumps straight back to the variable
+    // that caused a failure and remembers the combinations of
+    // candidates that failed a check
+    public var backjumping: Boolean = true
+    // Whether matches that can't agree with the matches of the
+    // classes they link to are removed before searching
+    public var propagate: Boolean = true
+    // How the instructions of patch methods are checked
+    public var backend: MatcherBackend = MatcherBackend.INTERPRETED
+}
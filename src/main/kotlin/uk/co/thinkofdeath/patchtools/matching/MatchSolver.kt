@@ -0,0 +1,699 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FieldNode
+import org.objectweb.asm.tree.MethodNode
+import uk.co.thinkofdeath.patchtools.PatchScope
+import uk.co.thinkofdeath.patchtools.logging.LoggableException
+import uk.co.thinkofdeath.patchtools.logging.StateLogger
+import uk.co.thinkofdeath.patchtools.patch.*
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
+import uk.co.thinkofdeath.patchtools.wrappers.ClassWrapper
+import uk.co.thinkofdeath.patchtools.wrappers.FieldWrapper
+import uk.co.thinkofdeath.patchtools.wrappers.MethodWrapper
+
+import java.util.*
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.atomic.AtomicInteger
+
+public class MatchSolver(private val classSet: ClassSet,
+                         private val patchClasses: PatchClasses,
+                         private val group: MatchGroup,
+                         private val logger: StateLogger,
+                         private val options: MatchOptions = MatchOptions()) {
+
+    // Every class in the group followed by its fields and
+    // methods. Fields and methods pick from the matches of
+    // their class so they can only be bound once it is
+    private val variables = ArrayList<Any>()
+    private val owners: IntArray
+    private val checks = ArrayList<Check>()
+    // The checks that read each variable, in stage order
+    private val checksByVariable: Array<IntArray>
+    // How many other variables each variable shares a check with
+    private val references: IntArray
+    // The fields and methods of each class
+    private val members: Array<IntArray>
+    // The candidates of each variable and the wrappers they are
+    // bound through. Classes have a single row, fields and methods
+    // have a row for each candidate of their class. Worked out once
+    // so binding a variable during the search builds nothing
+    private val candidates: Array<Array<Array<Any>>>
+    private val candidateWrappers: Array<Array<Array<Any>>>
+    private val root: Int
+
+    public var ticks: Long = 0
+        private set
+    // Rough number of bindings the search could try, using the
+    // candidate counts before the search starts
+    public val declaredEstimate: Double
+    public val orderedEstimate: Double
+
+        ;{
+        val classPositions = hashMapOf<String, Int>()
+        val classFields = hashMapOf<String, List<Int>>()
+        val classMembers = hashMapOf<String, List<Int>>()
+        group.getClasses().forEach {
+            val start = variables.size()
+            classPositions[it.name] = start
+            variables.add(it)
+            it.fields.forEach { variables.add(it) }
+            classFields[it.name] = (start..variables.size() - 1).toList()
+            it.methods.forEach { variables.add(it) }
+            classMembers[it.name] = (start..variables.size() - 1).toList()
+        }
+
+        owners = IntArray(variables.size())
+        var owner = 0
+        for (i in variables.indices) {
+            if (variables[i] is MatchClass) owner = i
+            owners[i] = owner
+        }
+
+        // Each check is run as soon as every variable it reads
+        // from the scope has been bound. Checking against a
+        // partial scope would let the checks 'assume' bindings
+        // for classes that just haven't been reached yet
+        val classes = group.getClasses()
+            .map { patchClasses.getClass(it.name) }
+            .filterNotNull()
+        for (stage in CheckStage.values()) {
+            for (pc in classes) {
+                val deps = HashSet<Int>()
+                val name = pc.ident.name
+                when (stage) {
+                    CheckStage.ATTRIBUTES -> {
+                        deps.add(classPositions[name]!!)
+                        pc.superModifiers
+                            .filter { it.mode != Mode.ADD }
+                            .forEach { addDependency(classPositions, it.ident.name, deps) }
+                        pc.interfaceModifiers
+                            .filter { it.mode != Mode.ADD }
+                            .forEach { addDependency(classPositions, it.ident.name, deps) }
+                    }
+                    CheckStage.FIELDS -> {
+                        deps.addAll(classFields[name]!!)
+                        pc.fields
+                            .filter { it.mode != Mode.ADD }
+                            .forEach { addTypeDependency(classPositions, Type.getType(it.descRaw), deps) }
+                    }
+                    CheckStage.METHODS -> {
+                        deps.addAll(classMembers[name]!!)
+                        pc.methods
+                            .filter { it.mode != Mode.ADD }
+                            .forEach { addMethodDependencies(classPositions, it.descRaw, deps) }
+                    }
+                    CheckStage.INSTRUCTIONS -> {
+                        deps.addAll(classMembers[name]!!)
+                        for (method in pc.methods) {
+                            if (method.mode == Mode.ADD) continue
+                            addMethodDependencies(classPositions, method.descRaw, deps)
+                            for (instruction in method.instructions) {
+                                val insn = instruction.instruction
+                                if (insn.handler == null || instruction.mode == Mode.ADD) continue
+                                insn.handler!!.getReferencedClasses(instruction).forEach {
+                                    addMembers(classMembers, it.name, deps)
+                                }
+                                insn.handler!!.getReferencedMethods(instruction).forEach {
+                                    addMembers(classMembers, it.owner.name, deps)
+                                }
+                                insn.handler!!.getReferencedFields(instruction).forEach {
+                                    addMembers(classMembers, it.owner.name, deps)
+                                }
+                            }
+                        }
+                    }
+                }
+                checks.add(Check(pc, stage, toIntArray(deps.toSortedList())))
+            }
+        }
+
+        val byVariable = Array(variables.size(), { ArrayList<Int>() })
+        for (i in checks.indices) {
+            for (dep in checks[i].dependencies) {
+                byVariable[dep].add(i)
+            }
+        }
+        checksByVariable = Array(variables.size(), { toIntArray(byVariable[it]) })
+        references = IntArray(variables.size())
+        for (i in variables.indices) {
+            val others = HashSet<Int>()
+            byVariable[i].forEach { others.addAll(checks[it].dependencies.toList()) }
+            others.remove(i)
+            references[i] = others.size()
+        }
+
+        members = Array(variables.size(), { c ->
+            toIntArray(variables.indices.filter { it != c && owners[it] == c })
+        })
+        candidates = Array(variables.size(), { buildCandidates(it) })
+        candidateWrappers = Array(variables.size(), { buildWrappers(it) })
+
+        // Fields and methods are estimated with the average
+        // number of candidates they have per match of their class
+        val sizes = DoubleArray(variables.size())
+        for (i in variables.indices) {
+            val rows = candidates[i]
+            var total = 0
+            rows.forEach { total += it.size }
+            sizes[i] = if (rows.isEmpty()) 0.0 else total.toDouble() / rows.size
+        }
+        val assigned = BooleanArray(variables.size())
+        val order = IntArray(variables.size())
+        for (i in order.indices) {
+            order[i] = pick(assigned, sizes)
+            assigned[order[i]] = true
+        }
+        root = if (order.isEmpty()) -1 else order[0]
+        declaredEstimate = estimate(variables.indices.toList(), sizes)
+        orderedEstimate = estimate(order.toList(), sizes)
+    }
+
+    // The number of nodes a search tree would have if every
+    // candidate was tried at every level
+    private fun estimate(order: List<Int>, sizes: DoubleArray): Double {
+        var total = 0.0
+        var product = 1.0
+        for (i in order) {
+            product *= sizes[i]
+            total += product
+        }
+        return total
+    }
+
+    private fun buildCandidates(index: Int): Array<Array<Any>> {
+        val variable = variables[index]
+        if (variable is MatchClass) {
+            return array(toArray(variable.matches))
+        }
+        val classes = (variables[owners[index]] as MatchClass).matches
+        return Array(classes.size(), {
+            when (variable) {
+                is MatchField -> toArray(variable.getMatches(classes[it]))
+                else -> toArray((variable as MatchMethod).getMatches(classes[it]))
+            }
+        })
+    }
+
+    private fun buildWrappers(index: Int): Array<Array<Any>> {
+        val variable = variables[index]
+        val rows = candidates[index]
+        if (variable is MatchClass) {
+            return array(Array<Any>(rows[0].size, {
+                classSet.getClassWrapper((rows[0][it] as ClassNode).name)!!
+            }))
+        }
+        val classes = candidates[owners[index]][0]
+        return Array(rows.size, { row ->
+            val cls = classSet.getClassWrapper((classes[row] as ClassNode).name)!!
+            Array<Any>(rows[row].size, {
+                if (variable is MatchField) {
+                    val fn = rows[row][it] as FieldNode
+                    cls.getField(fn.name, fn.desc)!!
+                } else {
+                    val mn = rows[row][it] as MethodNode
+                    cls.getMethod(mn.name, mn.desc)!!
+                }
+            })
+        })
+    }
+
+    // Picks the next variable to bind. Only variables whose
+    // class has been bound can be picked
+    private fun pick(assigned: BooleanArray, sizes: DoubleArray): Int {
+        var best = -1
+        var bestSize = 0.0
+        for (i in variables.indices) {
+            if (assigned[i] || !assigned[owners[i]] && owners[i] != i) continue
+            if (options.ordering == VariableOrdering.DECLARED) {
+                return i
+            }
+            val s = sizes[i]
+            if (best == -1 || s < bestSize || (s == bestSize && references[i] > references[best])) {
+                best = i
+                bestSize = s
+            }
+        }
+        return best
+    }
+
+    public fun solve(scope: PatchScope): PatchScope? {
+        ticks = 0
+        logger.println {
+            "Estimated search space: " + declaredEstimate + " declared, " +
+                orderedEstimate + " " + options.ordering
+        }
+        val first = if (root == -1) null else variables[root]
+        if (!options.parallelCandidates || first !is MatchClass || first.matchCount <= 1) {
+            val search = Search(null)
+            try {
+                return search.start(scope)
+            } finally {
+                ticks = search.ticks
+            }
+        }
+
+        // Each match of the first class picked is searched as
+        // its own task with its own state. Once a task finds a
+        // scope (or fails outright) the tasks that can no longer
+        // win are cancelled
+        val candidates = (first as MatchClass).matches
+        val winner = AtomicInteger(Integer.MAX_VALUE)
+        val slices = candidates.indices.map { Slice(scope, candidates[it], winner, it) }
+        val splitter = Splitter(slices)
+        if (ForkJoinTask.getPool() == options.pool) {
+            splitter.invoke()
+        } else {
+            options.pool.invoke(splitter)
+        }
+
+        for (slice in slices) {
+            logger.append(slice.logger)
+            ticks += slice.ticks
+        }
+        val index = winner.get()
+        if (index == Integer.MAX_VALUE) {
+            // When the first found wins, errors are only thrown if
+            // no slice found a scope
+            val failed = slices.firstOrNull { it.error != null }
+            if (failed != null) {
+                throw failed.error!!
+            }
+            return null
+        }
+        val error = slices[index].error
+        if (error != null) {
+            throw error
+        }
+        return slices[index].result
+    }
+
+    private inner class Splitter(private val slices: List<Slice>) : RecursiveAction() {
+        override fun compute() {
+            ForkJoinTask.invokeAll(slices)
+        }
+    }
+
+    private inner class Slice(private val scope: PatchScope,
+                              private val node: ClassNode,
+                              private val winner: AtomicInteger,
+                              private val index: Int) : RecursiveAction() {
+        val logger = this@MatchSolver.logger.createChild()
+        var result: PatchScope? = null
+        var error: Exception? = null
+        var ticks: Long = 0
+
+        override fun compute() {
+            if (isCancelled(winner, index)) return
+            val search = Search(this)
+            try {
+                result = search.start(scope, node)
+            } catch (e: Exception) {
+                e.printStackTrace(logger.getPrintWriter())
+                error = e
+            }
+            ticks = search.ticks
+            // An error ends the search like a result would on a
+            // single thread, unless any slice may win in which case
+            // another slice could still find a scope
+            if (result != null || (error != null && options.lowestCandidateWins)) {
+                win(winner, index)
+            }
+        }
+
+        fun shouldStop(): Boolean = isCancelled(winner, index)
+    }
+
+    private fun isCancelled(winner: AtomicInteger, index: Int): Boolean {
+        val current = winner.get()
+        if (options.lowestCandidateWins) {
+            return current < index
+        }
+        return current != Integer.MAX_VALUE
+    }
+
+    private fun win(winner: AtomicInteger, index: Int) {
+        if (!options.lowestCandidateWins) {
+            winner.compareAndSet(Integer.MAX_VALUE, index)
+            return
+        }
+        while (true) {
+            val current = winner.get()
+            if (current <= index || winner.compareAndSet(current, index)) {
+                return
+            }
+        }
+    }
+
+    // The per-thread state of a search, the plan above is
+    // shared between every slice. Everything a binding needs is
+    // kept in arrays sized up front so a tick doesn't allocate
+    private inner class Search(private val slice: Slice?) {
+        val logger = slice?.logger ?: this@MatchSolver.logger
+        val assigned = BooleanArray(variables.size())
+        // The candidate each variable is bound to, its position in
+        // its row and the member wrapper it took, used to find who
+        // caused a conflict
+        val values = arrayOfNulls<Any>(variables.size())
+        val choices = IntArray(variables.size())
+        val wrappers = arrayOfNulls<Any>(variables.size())
+        // How many candidates each variable has given what is
+        // bound, updated when a class is bound
+        val sizes = DoubleArray(variables.size())
+        // How many unbound variables each check is waiting on
+        val waiting = IntArray(checks.size())
+        // Checks on the current path that bound something
+        // themselves. Their bindings can change the result of
+        // later checks so they are blamed for any failure
+        val writers = IntArray(checks.size())
+        var writerCount = 0
+        // Conflict sets for each depth. A set is only read by the
+        // level above before the level it belongs to runs again
+        val conflictSets = Array(variables.size() + 1, { BitSet() })
+        val failureSets = Array(variables.size() + 1, { BitSet() })
+        // Failed combinations of candidates, indexed by each
+        // variable and node in them
+        val nogoods = Array(variables.size(), { HashMap<Any, MutableList<Nogood>>() })
+        var nogoodCount = 0
+        val cache = if (options.cacheChecks) MethodCheckCache() else null
+        var ticks: Long = 0
+        var backjumps: Long = 0
+        var skipped: Long = 0
+
+            ;{
+            for (i in checks.indices) {
+                waiting[i] = checks[i].dependencies.size()
+            }
+            for (i in variables.indices) {
+                if (owners[i] == i) {
+                    sizes[i] = candidates[i][0].size.toDouble()
+                }
+            }
+        }
+
+        // Candidates are bound and unbound on a single scope
+        // using its trail, once every variable is bound the scope
+        // holds the result
+        fun start(scope: PatchScope, firstNode: ClassNode? = null): PatchScope? {
+            val working = PatchScope(scope)
+            try {
+                if (search(0, working, firstNode) == null) {
+                    return working
+                }
+                return null
+            } finally {
+                logger.println { "Backjumps: " + backjumps + ", nogoods: " + nogoodCount + ", skipped: " + skipped }
+            }
+        }
+
+        // Returns null once every variable is bound, otherwise
+        // the variables that caused the failure
+        private fun search(depth: Int, scope: PatchScope, firstNode: ClassNode? = null): BitSet? {
+            if (depth == variables.size()) {
+                return null
+            }
+            // Recomputed every time since binding a class
+            // changes how many candidates its members have
+            val index = pick(assigned, sizes)
+            val row = candidates[index][rowOf(index)]
+            if (row.isEmpty()) {
+                throw LoggableException(logger)
+            }
+
+            val conflicts = conflictSets[depth]
+            conflicts.clear()
+            if (owners[index] != index) {
+                // The candidates depend on the class picked
+                conflicts.set(owners[index])
+            }
+            var from = 0
+            var to = row.size
+            if (firstNode != null) {
+                from = positionOf(row, firstNode)
+                to = from + 1
+            }
+            for (k in from..to - 1) {
+                if (slice != null && slice.shouldStop()) {
+                    conflicts.clear()
+                    return conflicts
+                }
+                val node = row[k]
+                val nogood = findNogood(index, node)
+                if (nogood != null) {
+                    skipped++
+                    nogood.variables.forEach { conflicts.set(it) }
+                    conflicts.clear(index)
+                    continue
+                }
+                ticks++
+                val mark = scope.mark()
+                var conflict = bind(depth, index, k, scope)
+                if (conflict == null) {
+                    conflict = descend(depth, index, k, scope)
+                    if (conflict == null) return null
+                }
+                scope.undo(mark)
+                if (options.backjumping && !conflict!!.get(index)) {
+                    // Nothing this variable could be bound to
+                    // would fix the failure
+                    backjumps++
+                    return conflict
+                }
+                conflict!!.clear(index)
+                conflicts.or(conflict)
+            }
+            return conflicts
+        }
+
+        // Classes have one row, members use the row for the
+        // candidate their class is bound to
+        private fun rowOf(index: Int): Int {
+            return if (owners[index] == index) 0 else choices[owners[index]]
+        }
+
+        private fun positionOf(row: Array<Any>, node: Any): Int {
+            for (i in row.indices) {
+                if (row[i].identityEquals(node)) {
+                    return i
+                }
+            }
+            throw IllegalStateException("Not a candidate: " + node)
+        }
+
+        // Returns the conflict if something else already has
+        // the binding
+        private fun bind(depth: Int, index: Int, k: Int, scope: PatchScope): BitSet? {
+            val variable = variables[index]
+            val wrapper = candidateWrappers[index][rowOf(index)][k]
+            if (variable is MatchClass) {
+                if (scope.putClass(wrapper as ClassWrapper, variable.name)) {
+                    return taken(depth, index, null)
+                }
+            } else if (variable is MatchField) {
+                if (scope.putField(wrapper as FieldWrapper, variable.name, variable.desc)) {
+                    return taken(depth, index, wrapper)
+                }
+                wrappers[index] = wrapper
+            } else if (variable is MatchMethod) {
+                if (scope.putMethod(wrapper as MethodWrapper, variable.name, variable.desc)) {
+                    return taken(depth, index, wrapper)
+                }
+                wrappers[index] = wrapper
+            }
+            return null
+        }
+
+        private fun taken(depth: Int, index: Int, wrapper: Any?): BitSet {
+            val conflict = writerConflicts(depth)
+            if (wrapper != null) {
+                // Whoever already holds the wrapper
+                for (i in variables.indices) {
+                    if (assigned[i] && wrappers[i].identityEquals(wrapper)) {
+                        conflict.set(i)
+                    }
+                }
+            }
+            conflict.set(index)
+            return conflict
+        }
+
+        private fun descend(depth: Int, index: Int, k: Int, scope: PatchScope): BitSet? {
+            assigned[index] = true
+            values[index] = candidates[index][rowOf(index)][k]
+            choices[index] = k
+            if (owners[index] == index) {
+                for (member in members[index]) {
+                    sizes[member] = candidates[member][k].size.toDouble()
+                }
+            }
+            val writersBefore = writerCount
+            var conflict: BitSet? = null
+            // Slightly faster to do it this way since the instruction checking is the heaviest
+            for (check in checksByVariable[index]) {
+                waiting[check]--
+                if (conflict == null && waiting[check] == 0) {
+                    val position = scope.position()
+                    if (!runCheck(checks[check], scope)) {
+                        conflict = conflictFor(depth, checks[check])
+                    } else if (scope.boundSince(position)) {
+                        writers[writerCount++] = check
+                    }
+                }
+            }
+            if (conflict == null) {
+                conflict = search(depth + 1, scope)
+                if (conflict == null) {
+                    return null
+                }
+            }
+            for (check in checksByVariable[index]) {
+                waiting[check]++
+            }
+            writerCount = writersBefore
+            wrappers[index] = null
+            values[index] = null
+            assigned[index] = false
+            return conflict
+        }
+
+        private fun runCheck(check: Check, scope: PatchScope): Boolean {
+            val pc = check.patchClass
+            return when (check.stage) {
+                CheckStage.ATTRIBUTES -> pc.checkAttributes(logger, scope, classSet)
+                CheckStage.FIELDS -> pc.checkFields(logger, scope, classSet)
+                CheckStage.METHODS -> pc.checkMethods(logger, scope, classSet)
+                else -> pc.checkMethodsInstructions(logger, scope, classSet, cache)
+            }
+        }
+
+        // A check only reads the variables it depends on, plus
+        // anything bound by the writers before it
+        private fun conflictFor(depth: Int, check: Check): BitSet {
+            val conflict = writerConflicts(depth)
+            for (dep in check.dependencies) {
+                conflict.set(dep)
+            }
+            if (writerCount == 0) {
+                // Without writers the same candidates will always
+                // fail this check no matter the order they're bound in
+                learn(check)
+            }
+            return conflict
+        }
+
+        private fun writerConflicts(depth: Int): BitSet {
+            val conflict = failureSets[depth]
+            conflict.clear()
+            for (i in 0..writerCount - 1) {
+                for (dep in checks[writers[i]].dependencies) {
+                    conflict.set(dep)
+                }
+            }
+            return conflict
+        }
+
+        private fun learn(check: Check) {
+            val deps = check.dependencies
+            if (!options.backjumping || nogoodCount >= MAX_NOGOODS || deps.size() > MAX_NOGOOD_SIZE) {
+                return
+            }
+            val nogood = Nogood(deps, Array(deps.size(), { values[deps[it]]!! }))
+            for (i in deps.indices) {
+                nogoods[deps[i]].getOrPut(nogood.values[i], { arrayListOf() }).add(nogood)
+            }
+            nogoodCount++
+        }
+
+        private fun findNogood(index: Int, node: Any): Nogood? {
+            val list = nogoods[index][node]
+            if (list == null) {
+                return null
+            }
+            @nogoods for (nogood in list) {
+                for (i in nogood.variables.indices) {
+                    val v = nogood.variables[i]
+                    if (v != index && (!assigned[v] || !values[v].identityEquals(nogood.values[i]))) {
+                        continue@nogoods
+                    }
+                }
+                return nogood
+            }
+            return null
+        }
+    }
+
+    private fun addMethodDependencies(positions: Map<String, Int>, desc: String, deps: MutableSet<Int>) {
+        val type = Type.getMethodType(desc)
+        for (arg in type.getArgumentTypes()) {
+            addTypeDependency(positions, arg, deps)
+        }
+        addTypeDependency(positions, type.getReturnType(), deps)
+    }
+
+    private fun addTypeDependency(positions: Map<String, Int>, type: Type, deps: MutableSet<Int>) {
+        val rt = MatchGenerator.getRootType(type)
+        if (rt.getSort() == Type.OBJECT) {
+            addDependency(positions, Ident(rt.getInternalName()).name, deps)
+        }
+    }
+
+    private fun addDependency(positions: Map<String, Int>, name: String, deps: MutableSet<Int>) {
+        val pos = positions[name]
+        if (pos != null) {
+            deps.add(pos)
+        }
+    }
+
+    private fun addMembers(members: Map<String, List<Int>>, name: String, deps: MutableSet<Int>) {
+        val list = members[name]
+        if (list != null) {
+            deps.addAll(list)
+        }
+    }
+
+    private fun toArray(list: List<Any>): Array<Any> {
+        return Array(list.size(), { list[it] })
+    }
+
+    private fun toIntArray(list: List<Int>): IntArray {
+        val array = IntArray(list.size())
+        for (i in list.indices) {
+            array[i] = list[i]
+        }
+        return array
+    }
+
+    private class Check(val patchClass: PatchClass, val stage: CheckStage, val dependencies: IntArray)
+
+    private class Nogood(val variables: IntArray, val values: Array<Any>)
+
+    class object {
+        private val MAX_NOGOODS = 4096
+        private val MAX_NOGOOD_SIZE = 16
+    }
+
+    private enum class CheckStage {
+        ATTRIBUTES
+        FIELDS
+        METHODS
+        INSTRUCTIONS
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+public enum class MatcherBackend {
+    // Every instruction is checked through its handler
+    INTERPRETED
+    // Each patch method gets a generated class that rules
+    // instructions in or out directly where it can without
+    // going through the handlers
+    GENERATED
+    // Runs both and fails if they ever disagree
+    VERIFY
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.tree.ClassNode
+
+import java.util.ArrayList
+import java.util.BitSet
+
+// The candidates of a field or method as a bitset of the ids
+// NodeIds gives each pair of a class and one of its members,
+// along with the pairs that have been checked and the ones
+// still waiting to be
+public class MemberDomain<N>(private val ids: NodeIds, private val members: NodeIds.Members<N>) {
+
+    private val matched = BitSet()
+    private val checked = BitSet()
+    // Each match is queued once when it is added
+    private val unchecked = IntQueue()
+
+    public fun add(owner: ClassNode, node: N) {
+        val id = members.id(owner, node)
+        if (!checked.get(id) && !matched.get(id)) {
+            matched.set(id)
+            unchecked.add(id)
+        }
+    }
+
+    public fun remove(owner: ClassNode, node: N) {
+        matched.clear(members.id(owner, node))
+    }
+
+    public fun remove(owner: ClassNode) {
+        val cls = ids.classId(owner)
+        matched.clear(members.firstDeclared(cls), members.endDeclared(cls))
+        for (id in members.inherited(cls)) {
+            matched.clear(id)
+        }
+    }
+
+    public fun addChecked(owner: ClassNode, node: N) {
+        checked.set(members.id(owner, node))
+    }
+
+    public fun hasUnchecked(): Boolean {
+        // Skip anything removed since it was queued
+        while (!unchecked.isEmpty() && !matched.get(unchecked.peek())) {
+            unchecked.poll()
+        }
+        return !unchecked.isEmpty()
+    }
+
+    // Returns the id of the next pair to check, -1 if there
+    // isn't one
+    public fun pollUnchecked(): Int {
+        if (!hasUnchecked()) {
+            return -1
+        }
+        return unchecked.poll()
+    }
+
+    public fun getOwner(id: Int): ClassNode {
+        return ids.getClass(members.owner(id))
+    }
+
+    public fun getNode(id: Int): N {
+        return members.node(id)
+    }
+
+    public fun getMatches(): List<N> {
+        val nodes = ArrayList<N>(matched.cardinality())
+        var id = matched.nextSetBit(0)
+        while (id != -1) {
+            nodes.add(members.node(id))
+            id = matched.nextSetBit(id + 1)
+        }
+        return nodes
+    }
+
+    public fun getMatches(owner: ClassNode): List<N> {
+        val cls = ids.classId(owner)
+        val nodes = ArrayList<N>()
+        val end = members.endDeclared(cls)
+        var id = matched.nextSetBit(members.firstDeclared(cls))
+        while (id != -1 && id < end) {
+            nodes.add(members.node(id))
+            id = matched.nextSetBit(id + 1)
+        }
+        for (extra in members.inherited(cls)) {
+            if (matched.get(extra)) {
+                nodes.add(members.node(extra))
+            }
+        }
+        return nodes
+    }
+
+    // Every matched id in order
+    public fun getIds(): IntArray {
+        val result = IntArray(matched.cardinality())
+        var i = 0
+        var id = matched.nextSetBit(0)
+        while (id != -1) {
+            result[i++] = id
+            id = matched.nextSetBit(id + 1)
+        }
+        return result
+    }
+
+    public fun count(owner: ClassNode): Int {
+        val cls = ids.classId(owner)
+        val end = members.endDeclared(cls)
+        var count = 0
+        var id = matched.nextSetBit(members.firstDeclared(cls))
+        while (id != -1 && id < end) {
+            count++
+            id = matched.nextSetBit(id + 1)
+        }
+        for (extra in members.inherited(cls)) {
+            if (matched.get(extra)) {
+                count++
+            }
+        }
+        return count
+    }
+
+    public fun uses(owner: ClassNode): Boolean {
+        val cls = ids.classId(owner)
+        val id = matched.nextSetBit(members.firstDeclared(cls))
+        if (id != -1 && id < members.endDeclared(cls)) {
+            return true
+        }
+        return members.inherited(cls).any { matched.get(it) }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.*
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
+
+import java.util.Collections
+import java.util.HashSet
+import java.util.concurrent.ConcurrentHashMap
+
+// The classes, methods and fields of the class set that the code
+// of a method refers to. Hidden classes are left out
+public class MethodReferences(classSet: ClassSet, node: MethodNode) {
+
+    public val classes: Set<ClassNode>
+    public val methods: Set<MatchMethod.MethodPair>
+    public val fields: Set<MatchField.FieldPair>
+
+        ;{
+        val classes = HashSet<ClassNode>()
+        val methods = HashSet<MatchMethod.MethodPair>()
+        val fields = HashSet<MatchField.FieldPair>()
+        val it = node.instructions.iterator()
+        while (it.hasNext()) {
+            val insn = it.next()
+
+            if (insn is MethodInsnNode) {
+                val cls = classSet.getClassWrapper(insn.owner)
+                if (cls == null || cls.isHidden()) continue
+
+                classes.add(cls.node)
+
+                val wrap = cls.getMethod(insn.name, insn.desc)
+                if (wrap != null) {
+                    methods.add(MatchMethod.MethodPair(cls.node, cls.getMethodNode(wrap)!!))
+                }
+            } else if (insn is FieldInsnNode) {
+                val cls = classSet.getClassWrapper(insn.owner)
+                if (cls == null || cls.isHidden()) continue
+
+                classes.add(cls.node)
+
+                val wrap = cls.getField(insn.name, insn.desc)
+                if (wrap != null) {
+                    fields.add(MatchField.FieldPair(cls.node, cls.getFieldNode(wrap)!!))
+                }
+            } else if (insn is LdcInsnNode) {
+                if (insn.cst is Type) {
+                    val cls = classSet.getClassWrapper((insn.cst as Type).getInternalName())
+                    if (cls == null || cls.isHidden()) continue
+
+                    classes.add(cls.node)
+                }
+            } else if (insn is TypeInsnNode) {
+                val desc = insn.desc
+                val cls = classSet.getClassWrapper(MatchGenerator.getRootType(Type.getObjectType(desc)).getInternalName())
+                if (cls == null || cls.isHidden()) continue
+
+                classes.add(cls.node)
+            } else if (insn is MultiANewArrayInsnNode) {
+                val desc = insn.desc
+                val cls = classSet.getClassWrapper(MatchGenerator.getRootType(Type.getObjectType(desc)).getInternalName())
+                if (cls == null || cls.isHidden()) continue
+
+                classes.add(cls.node)
+            }
+        }
+        this.classes = Collections.unmodifiableSet(classes)
+        this.methods = Collections.unmodifiableSet(methods)
+        this.fields = Collections.unmodifiableSet(fields)
+    }
+
+    // The same method node is checked against many patch methods
+    // so the references are worked out once for each. The cache is
+    // dropped with the other indexes when the class set changes,
+    // invalidate has to be called for a node changed without that
+    public class Cache(private val classSet: ClassSet) {
+
+        private val references = ConcurrentHashMap<MethodNode, MethodReferences>()
+
+        public fun get(node: MethodNode): MethodReferences {
+            val refs = references[node]
+            if (refs != null) {
+                return refs
+            }
+            val created = MethodReferences(classSet, node)
+            references.putIfAbsent(node, created)
+            return created
+        }
+
+        public fun invalidate(node: MethodNode) {
+            references.remove(node)
+        }
+    }
+
+    class object {
+        public val KEY: String = "methodReferences"
+    }
+}
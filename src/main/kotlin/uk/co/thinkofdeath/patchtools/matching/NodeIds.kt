@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FieldNode
+import org.objectweb.asm.tree.MethodNode
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
+
+import java.util.ArrayList
+import java.util.HashMap
+import java.util.IdentityHashMap
+
+// Gives every class in the class set a dense id and every method
+// and field one paired with the class it was found through, so
+// the candidates of a match can be kept in a bitset. The members
+// a class declares get a run of ids next to each other, pairs
+// with inherited members are given ids as they turn up
+public class NodeIds(classSet: ClassSet) {
+
+    private val classes: Array<ClassNode>
+    private val classIds = IdentityHashMap<ClassNode, Int>()
+    public val methods: Members<MethodNode>
+    public val fields: Members<FieldNode>
+
+        ;{
+        classes = classSet.classes()
+            .map { classSet.getClassWrapper(it)!!.node }
+            .copyToArray()
+        for (i in classes.indices) {
+            classIds[classes[i]] = i
+        }
+        methods = Members(classes, { it.methods })
+        fields = Members(classes, { it.fields })
+    }
+
+    public fun classId(node: ClassNode): Int {
+        return classIds[node] ?: throw IllegalArgumentException(node.name + " isn't in the class set")
+    }
+
+    public fun getClass(id: Int): ClassNode {
+        return classes[id]
+    }
+
+    public inner class Members<N>(classes: Array<ClassNode>, members: (ClassNode) -> List<N>) {
+
+        // Ids start[c] until start[c + 1] are the members class
+        // c declares
+        private val start = IntArray(classes.size + 1)
+        private val declared: Array<Any?>
+        private val declaredIds = IdentityHashMap<Any, Int>()
+        private val declaredOwners: IntArray
+
+        // Guarded by extraIds
+        private val extraIds = HashMap<Extra, Int>()
+        private val extraNodes = ArrayList<Any>()
+        private val extraOwners = ArrayList<Int>()
+        private val extraByOwner = HashMap<Int, IntArray>()
+
+            ;{
+            var count = 0
+            for (i in classes.indices) {
+                start[i] = count
+                count += members(classes[i]).size()
+            }
+            start[classes.size] = count
+            declared = arrayOfNulls<Any>(count)
+            declaredOwners = IntArray(count)
+            for (i in classes.indices) {
+                var id = start[i]
+                for (member in members(classes[i])) {
+                    declared[id] = member
+                    declaredOwners[id] = i
+                    declaredIds[member] = id
+                    id++
+                }
+            }
+        }
+
+        public fun id(owner: Int, node: N): Int {
+            val id = declaredIds[node]
+            if (id != null && declaredOwners[id] == owner) {
+                return id
+            }
+            synchronized(extraIds) {
+                val key = Extra(owner, node)
+                val extra = extraIds[key]
+                if (extra != null) {
+                    return extra
+                }
+                val created = declared.size + extraNodes.size()
+                extraIds[key] = created
+                extraNodes.add(node)
+                extraOwners.add(owner)
+                val old = extraByOwner[owner] ?: IntArray(0)
+                val ids = IntArray(old.size + 1)
+                System.arraycopy(old, 0, ids, 0, old.size)
+                ids[old.size] = created
+                extraByOwner[owner] = ids
+                return created
+            }
+        }
+
+        public fun id(owner: ClassNode, node: N): Int {
+            return id(classId(owner), node)
+        }
+
+        public fun owner(id: Int): Int {
+            if (id < declared.size) {
+                return declaredOwners[id]
+            }
+            synchronized(extraIds) {
+                return extraOwners[id - declared.size]
+            }
+        }
+
+        public fun node(id: Int): N {
+            if (id < declared.size) {
+                return declared[id] as N
+            }
+            synchronized(extraIds) {
+                return extraNodes[id - declared.size] as N
+            }
+        }
+
+        public fun firstDeclared(owner: Int): Int {
+            return start[owner]
+        }
+
+        public fun endDeclared(owner: Int): Int {
+            return start[owner + 1]
+        }
+
+        // Ids of pairs with members the class inherits
+        public fun inherited(owner: Int): IntArray {
+            synchronized(extraIds) {
+                return extraByOwner[owner] ?: NONE
+            }
+        }
+    }
+
+    private data class Extra(val owner: Int, val node: Any?)
+
+    class object {
+        public val KEY: String = "ids"
+        private val NONE = IntArray(0)
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.tree.MethodNode
+import uk.co.thinkofdeath.patchtools.wrappers.ClassIndex
+
+import java.util.concurrent.ConcurrentHashMap
+
+// Counts the opcodes used by each method in the class set, built
+// the first time a method is asked for
+public class OpcodeIndex : ClassIndex {
+
+    private val summaries = ConcurrentHashMap<MethodNode, Summary>()
+
+    public fun get(node: MethodNode): Summary {
+        val summary = summaries[node]
+        if (summary != null) {
+            return summary
+        }
+        // Two threads may both build one, they'll be the same
+        val created = Summary(node)
+        summaries.putIfAbsent(node, created)
+        return created
+    }
+
+    public fun invalidate(node: MethodNode) {
+        summaries.remove(node)
+    }
+
+    // Rewritten methods are invalidated as they're rewritten
+    override fun update(classes: Set<String>): Boolean {
+        return true
+    }
+
+    public class Summary(node: MethodNode) {
+        // Which opcodes are used at all, 64 to a long
+        public val bits: LongArray = LongArray(4)
+        private val counts = ShortArray(256)
+        // Instructions that aren't labels, line numbers or
+        // frames
+        public val size: Int
+
+            ;{
+            var size = 0
+            for (insn in node.instructions.toArray()) {
+                val opcode = insn.getOpcode()
+                if (opcode < 0) continue
+                size++
+                bits[opcode ushr 6] = bits[opcode ushr 6] or (1L shl (opcode and 63))
+                if (counts[opcode] < SATURATED) {
+                    counts[opcode] = (counts[opcode] + 1).toShort()
+                }
+            }
+            this.size = size
+        }
+
+        public fun count(opcode: Int): Int {
+            val count = counts[opcode].toInt()
+            // Saturated, more than any method could need
+            return if (count == SATURATED) 1 shl 20 else count
+        }
+    }
+
+    class object {
+        public val KEY: String = "opcodes"
+        val SATURATED = 32767
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.*
+import uk.co.thinkofdeath.patchtools.logging.StateLogger
+import uk.co.thinkofdeath.patchtools.patch.Ident
+import uk.co.thinkofdeath.patchtools.patch.Mode
+import uk.co.thinkofdeath.patchtools.patch.PatchClasses
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
+
+import java.util.*
+
+// Removes matches that can't be part of any solution. Every
+// link is between a class, field or method and a class of the
+// group: each match on the first side names the classes it
+// could link to and at least one of them has to still be a
+// match of the second side, and each match of the second side
+// has to be named by a match of the first. Links are revised
+// until nothing changes (AC-3)
+public class Propagator(private val classSet: ClassSet,
+                        private val patchClasses: PatchClasses,
+                        private val group: MatchGroup,
+                        private val logger: StateLogger) {
+
+    private val links = ArrayList<Link>()
+    private val linksByVariable = HashMap<Any, MutableList<Link>>()
+    // Every class a method's code names, in any position an
+    // instruction could match against
+    private val mentions = HashMap<MethodNode, Set<String>>()
+
+    public var removed: Int = 0
+        private set
+
+        ;{
+        val classes = HashMap<String, MatchClass>()
+        group.getClasses().forEach { classes[it.name] = it }
+
+        for (cls in group.getClasses()) {
+            val su = classes[cls.superClass?.name]
+            if (su != null) {
+                link(cls, su, { listOf((it as ClassNode).superName) })
+            }
+            for (inter in cls.interfaces) {
+                val target = classes[inter.name]
+                if (target != null) {
+                    link(cls, target, { (it as ClassNode).interfaces })
+                }
+            }
+
+            for (field in cls.fields) {
+                link(field, cls, { listOf((it as MatchField.FieldPair).owner.name) })
+                val target = classes[typeName(field.type)]
+                if (target != null) {
+                    link(field, target, {
+                        listOf(nodeTypeName(Type.getType((it as MatchField.FieldPair).node.desc)))
+                    })
+                }
+            }
+
+            for (method in cls.methods) {
+                link(method, cls, { listOf((it as MatchMethod.MethodPair).owner.name) })
+                for (i in method.arguments.indices) {
+                    val target = classes[typeName(method.arguments[i])]
+                    if (target != null) {
+                        link(method, target, {
+                            val args = Type.getArgumentTypes((it as MatchMethod.MethodPair).node.desc)
+                            if (args.size == method.arguments.size()) listOf(nodeTypeName(args[i])) else listOf()
+                        })
+                    }
+                }
+                val ret = classes[typeName(method.returnType)]
+                if (ret != null) {
+                    link(method, ret, {
+                        listOf(nodeTypeName(Type.getReturnType((it as MatchMethod.MethodPair).node.desc)))
+                    })
+                }
+
+                val pm = patchClasses.getClass(cls.name)?.methods
+                    ?.filter { it.ident.name == method.name && it.descRaw == method.desc }
+                    ?.first
+                if (pm == null) continue
+                val referenced = HashSet<MatchClass>()
+                for (instruction in pm.instructions) {
+                    val insn = instruction.instruction
+                    if (insn.handler == null || instruction.mode == Mode.ADD) continue
+                    insn.handler!!.getReferencedClasses(instruction)
+                        .map { classes[it.name] }
+                        .filterNotNull()
+                        .forEach { referenced.add(it) }
+                }
+                for (target in referenced) {
+                    link(method, target, { getMentions(it as MatchMethod.MethodPair) })
+                }
+            }
+        }
+    }
+
+    private fun link(from: Any, to: MatchClass, keys: (Any) -> Collection<String?>) {
+        val link = Link(from, to, keys)
+        links.add(link)
+        linksByVariable.getOrPut(from, { arrayListOf() }).add(link)
+        linksByVariable.getOrPut(to, { arrayListOf() }).add(link)
+    }
+
+    public fun run() {
+        val queue = ArrayDeque<Link>(links)
+        val queued = HashSet<Link>(links)
+        while (!queue.isEmpty()) {
+            val link = queue.poll()
+            queued.remove(link)
+            val changed = ArrayList<Any>()
+            if (reviseFrom(link)) changed.add(link.from)
+            if (reviseTo(link)) changed.add(link.to)
+            for (variable in changed) {
+                for (other in linksByVariable[variable]) {
+                    if (other != link && queued.add(other)) {
+                        queue.add(other)
+                    }
+                }
+            }
+        }
+        logger.println("Propagation removed " + removed + " matches")
+    }
+
+    private fun reviseFrom(link: Link): Boolean {
+        val names = HashSet<String>()
+        link.to.matches.forEach { names.add(it.name) }
+        var changed = false
+        for (value in values(link.from)) {
+            if (link.keys(value).none { it in names }) {
+                remove(link.from, value)
+                changed = true
+            }
+        }
+        return changed
+    }
+
+    private fun reviseTo(link: Link): Boolean {
+        val names = HashSet<String?>()
+        values(link.from).forEach { names.addAll(link.keys(it)) }
+        var changed = false
+        for (value in link.to.matches) {
+            if (value.name !in names) {
+                remove(link.to, value)
+                changed = true
+            }
+        }
+        return changed
+    }
+
+    private fun values(variable: Any): List<Any> {
+        return when (variable) {
+            is MatchClass -> variable.matches
+            is MatchField -> variable.getMatchedPairs()
+            else -> (variable as MatchMethod).getMatchedPairs()
+        }
+    }
+
+    private fun remove(variable: Any, value: Any) {
+        if (variable is MatchClass) {
+            val node = value as ClassNode
+            logger.println("Removing " + node.name + " from " + variable.name)
+            variable.removeMatch(node)
+        } else if (variable is MatchField) {
+            val pair = value as MatchField.FieldPair
+            variable.removeMatch(pair.owner, pair.node)
+        } else if (variable is MatchMethod) {
+            val pair = value as MatchMethod.MethodPair
+            variable.removeMatch(pair.owner, pair.node)
+        }
+        removed++
+    }
+
+    private fun getMentions(pair: MatchMethod.MethodPair): Set<String> {
+        val node = pair.node
+        return mentions.getOrPut(node, {
+            // The code may not have been loaded yet
+            classSet.getClassWrapper(pair.owner.name)!!.ensureCode(node)
+            val names = HashSet<String>()
+            val it = node.instructions.iterator()
+            while (it.hasNext()) {
+                val insn = it.next()
+                if (insn is MethodInsnNode) {
+                    names.add(insn.owner)
+                    addMethodTypes(names, Type.getMethodType(insn.desc))
+                } else if (insn is FieldInsnNode) {
+                    names.add(insn.owner)
+                    names.add(nodeTypeName(Type.getType(insn.desc)))
+                } else if (insn is LdcInsnNode) {
+                    if (insn.cst is Type) {
+                        names.add(nodeTypeName(insn.cst as Type))
+                    }
+                } else if (insn is TypeInsnNode) {
+                    names.add(nodeTypeName(Type.getObjectType(insn.desc)))
+                } else if (insn is MultiANewArrayInsnNode) {
+                    names.add(nodeTypeName(Type.getType(insn.desc)))
+                }
+            }
+            names
+        })
+    }
+
+    private fun addMethodTypes(names: MutableSet<String>, type: Type) {
+        type.getArgumentTypes().forEach { names.add(nodeTypeName(it)) }
+        names.add(nodeTypeName(type.getReturnType()))
+    }
+
+    private fun typeName(type: Type?): String? {
+        if (type == null) return null
+        val rt = MatchGenerator.getRootType(type)
+        if (rt.getSort() != Type.OBJECT) return null
+        return Ident(rt.getInternalName()).name
+    }
+
+    // Types in the class set are never weak so they don't
+    // need to go through Ident. Primitives give a name that
+    // can't match any class
+    private fun nodeTypeName(type: Type): String {
+        val rt = MatchGenerator.getRootType(type)
+        if (rt.getSort() != Type.OBJECT) return rt.getDescriptor()
+        return rt.getInternalName()
+    }
+
+    private class Link(val from: Any, val to: MatchClass, val keys: (Any) -> Collection<String?>)
+
+    class object {
+        public val KEY: String = "propagation"
+    }
+}
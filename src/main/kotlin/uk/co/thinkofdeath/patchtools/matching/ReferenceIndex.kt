@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.MethodNode
+
+// Maps each method and field used in the class set to the
+// methods that use it. Every use is stored both with and
+// without its name so that patches which only know the
+// owner can still use it
+public class ReferenceIndex(declaring: Map<MethodNode, ClassNode>) : InstructionIndex(declaring) {
+
+    class object {
+        public val KEY: String = "references"
+
+        public fun methodKey(opcode: Int, owner: String, name: String?): String {
+            return "method " + opcode + " " + owner + (if (name != null) " " + name else "")
+        }
+
+        public fun fieldKey(opcode: Int, owner: String, name: String?): String {
+            return "field " + opcode + " " + owner + (if (name != null) " " + name else "")
+        }
+    }
+}
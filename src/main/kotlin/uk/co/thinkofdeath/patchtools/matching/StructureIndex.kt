@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.matching
+
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.ClassNode
+import uk.co.thinkofdeath.patchtools.patch.*
+import uk.co.thinkofdeath.patchtools.wrappers.ClassIndex
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
+
+import java.util.HashMap
+import java.util.HashSet
+import java.util.regex.Pattern
+
+// Groups the classes of a class set by the parts of their
+// shape that a patch class has to match exactly. Only things
+// that PatchClass.checkAttributes, checkFields and checkMethods
+// would reject are used to rule out a class so the index never
+// drops a class that could have matched
+public class StructureIndex(private val classSet: ClassSet) : ClassIndex {
+
+    private val shapes = HashMap<ClassNode, Shape>()
+    private val byName = HashMap<String, ClassNode>()
+    private val byAccess = HashMap<Int, MutableList<ClassNode>>()
+    private val bySuper = HashMap<String, MutableList<ClassNode>>()
+    // Where each class is in ClassSet.classes, the lists above
+    // are kept in that order
+    private val order = HashMap<ClassNode, Int>()
+
+    public val size: Int
+        get() = shapes.size()
+
+        ;{
+        val nodes = classSet.classes(true).map { classSet.getClassWrapper(it)!!.node }
+        for (i in nodes.indices) {
+            order[nodes[i]] = i
+            add(nodes[i])
+        }
+    }
+
+    private fun add(node: ClassNode) {
+        shapes[node] = Shape(node, classSet.getSupers(node))
+        byName[node.name] = node
+        insert(byAccess.getOrPut(node.access and classModifiers, { arrayListOf() }), node)
+        if (node.superName != null) {
+            insert(bySuper.getOrPut(node.superName, { arrayListOf() }), node)
+        }
+    }
+
+    private fun insert(list: MutableList<ClassNode>, node: ClassNode) {
+        val position = order[node]!!
+        var i = list.size()
+        while (i > 0 && order[list[i - 1]]!! > position) {
+            i--
+        }
+        list.add(i, node)
+    }
+
+    // The rewritten classes and the classes that inherit from
+    // them are given new shapes, the rest are kept
+    override fun update(classes: Set<String>): Boolean {
+        val changed = HashSet<ClassNode>()
+        for (name in classes) {
+            val node = byName[name]
+            if (node == null) {
+                return false
+            }
+            changed.add(node)
+        }
+        val affected = shapes.keySet().filter {
+            it in changed || shapes[it]!!.supers.any { it in changed }
+        }
+        for (node in affected) {
+            val shape = shapes.remove(node)!!
+            byAccess[shape.access]?.remove(node)
+            if (shape.superName != null) {
+                bySuper[shape.superName]?.remove(node)
+            }
+            add(node)
+        }
+        return true
+    }
+
+    // Returns the classes that could match the patch class, in
+    // the same order as ClassSet.classes
+    public fun candidates(pc: PatchClass): List<ClassNode> {
+        if (!pc.ident.isWeak()) {
+            val node = byName[pc.ident.name]
+            if (node == null || !fits(pc, node)) {
+                return listOf()
+            }
+            return listOf(node)
+        }
+
+        var base: List<ClassNode> = byAccess[pc.access] ?: listOf()
+        pc.superModifiers
+            .filter { it.mode != Mode.ADD && !it.ident.isWeak() && it.ident.name != "*" }
+            .forEach {
+                val supers = bySuper[it.ident.name] ?: listOf<ClassNode>()
+                if (supers.size() < base.size()) {
+                    base = supers
+                }
+            }
+        return base.filter { fits(pc, it) }
+    }
+
+    // Whether the class or one of the classes it extends or
+    // implements is one of the declarers
+    public fun inherits(node: ClassNode, declarers: Set<ClassNode>): Boolean {
+        return node in declarers || shapes[node]!!.supers.any { it in declarers }
+    }
+
+    private fun fits(pc: PatchClass, node: ClassNode): Boolean {
+        if (node.access and classModifiers != pc.access) {
+            return false
+        }
+        val mask = when (pc.type) {
+            ClassType.INTERFACE -> Opcodes.ACC_INTERFACE
+            ClassType.ENUM -> Opcodes.ACC_ENUM
+            else -> 0
+        }
+        if (mask != 0 && (node.access and mask) == 0) {
+            return false
+        }
+
+        for (su in pc.superModifiers) {
+            if (su.mode == Mode.ADD || su.ident.isWeak() || su.ident.name == "*") continue
+            if (su.ident.name != node.superName) {
+                return false
+            }
+        }
+        for (inter in pc.interfaceModifiers) {
+            if (inter.mode == Mode.ADD) continue
+            if (node.interfaces.isEmpty()) {
+                return false
+            }
+            if (!inter.ident.isWeak() && inter.ident.name != "*" && inter.ident.name !in node.interfaces) {
+                return false
+            }
+        }
+
+        // Each patch field and method is bound to a different
+        // member of the class so there has to be at least as many
+        // members of each shape as the patch asks for. Members can
+        // be bound to ones the class inherits so those count too
+        val shape = shapes[node]!!
+        val fields = HashMap<String, Int>()
+        pc.fields
+            .filter { it.mode != Mode.ADD }
+            .forEach {
+                val key = fieldKey(it.access, it.descRaw)
+                fields[key] = (fields[key] ?: 0) + 1
+            }
+        if (fields.any { (shape.fields[it.getKey()] ?: 0) < it.getValue() }) {
+            return false
+        }
+        val methods = HashMap<String, Int>()
+        pc.methods
+            .filter { it.mode != Mode.ADD }
+            .forEach {
+                val key = abstractDesc(it.descRaw)
+                methods[key] = (methods[key] ?: 0) + 1
+            }
+        return methods.all { (shape.methods[it.getKey()] ?: 0) >= it.getValue() }
+    }
+
+    private class Shape(node: ClassNode, val supers: List<ClassNode>) {
+        val fields = HashMap<String, Int>()
+        val methods = HashMap<String, Int>()
+        // What the class was listed under
+        val access = node.access and classModifiers
+        val superName: String? = node.superName
+
+            ;{
+            add(node)
+            supers.forEach { add(it) }
+        }
+
+        private fun add(node: ClassNode) {
+            for (field in node.fields) {
+                val key = fieldKey(field.access and fieldModifiers, field.desc)
+                fields[key] = (fields[key] ?: 0) + 1
+            }
+            for (method in node.methods) {
+                val key = abstractDesc(method.desc)
+                methods[key] = (methods[key] ?: 0) + 1
+            }
+        }
+    }
+
+    class object {
+        public val KEY: String = "structure"
+
+        private val classPattern = Pattern.compile("L[^;]*;")
+
+        // Class names are replaced with a placeholder since
+        // they are either obfuscated or weak in the patch
+        fun abstractDesc(desc: String): String {
+            return classPattern.matcher(desc).replaceAll("L;")
+        }
+
+        fun fieldKey(access: Int, desc: String): String {
+            return access.toString() + ":" + abstractDesc(desc)
+        }
+    }
+}
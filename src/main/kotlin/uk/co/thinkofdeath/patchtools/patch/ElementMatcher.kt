@@ -0,0 +1,28 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.patch
+
+import org.objectweb.asm.tree.AbstractInsnNode
+
+// Implemented by the classes MatcherCompiler generates
+public trait ElementMatcher {
+
+    // Whether the instruction matches the element of the pattern,
+    // one of MatcherCompiler.NO, YES or CHECK when only the
+    // handler can tell
+    public fun test(element: Int, insn: AbstractInsnNode): Int
+}
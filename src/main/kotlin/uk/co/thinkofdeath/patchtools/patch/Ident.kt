@@ -18,16 +18,12 @@ package uk.co.thinkofdeath.patchtools.patch
 
 public class Ident(v: String) {
 
-    private var weak: Boolean = false
+    private val weak: Boolean
     public val name: String
 
     {
-        var value = v
-        if (value.charAt(0) == '~') {
-            weak = true
-            value = value.substring(1)
-        }
-        name = value
+        weak = v.charAt(0) == '~'
+        name = if (weak) v.substring(1) else v
     }
 
     public fun isWeak(): Boolean {
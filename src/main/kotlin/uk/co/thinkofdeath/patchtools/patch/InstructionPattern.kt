@@ -0,0 +1,332 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.patch
+
+import org.objectweb.asm.tree.*
+import uk.co.thinkofdeath.patchtools.PatchScope
+import uk.co.thinkofdeath.patchtools.ScopeRecorder
+import uk.co.thinkofdeath.patchtools.instruction.Instruction
+import uk.co.thinkofdeath.patchtools.logging.StateLogger
+import uk.co.thinkofdeath.patchtools.matching.MatcherBackend
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
+
+import java.util.ArrayList
+import java.util.BitSet
+import java.util.HashMap
+import java.util.HashSet
+
+// The match and remove instructions of a patch method compiled
+// into an automaton over the instructions of a method. State
+// (q, j) means the first j patch instructions have been matched
+// against the first q instructions of the method. The states are
+// searched depth first with the checks binding into the scope as
+// they go, so weak names and labels are part of the state: two
+// paths only reach the same state if they made the same bindings
+// on the way. Failed states are remembered, without bindings this
+// is one walk over the method however many wildcards the patch has
+public class InstructionPattern(instructions: List<PatchInstruction>) {
+
+    private val elements: Array<PatchInstruction>
+    private val kinds: IntArray
+    // Whether instructions can be skipped while looking for
+    // the element, set by a wildcard until something is matched
+    private val wild: BooleanArray
+    // A wildcard at the very end takes the rest of the method
+    private val consumesRest: Boolean
+
+    private volatile var backend = MatcherBackend.INTERPRETED
+    private volatile var matcher: ElementMatcher? = null
+
+        ;{
+        elements = instructions
+            .filter { it.mode != Mode.ADD }
+            .copyToArray()
+        kinds = IntArray(elements.size)
+        wild = BooleanArray(elements.size)
+        var skip = false
+        for (j in elements.indices) {
+            kinds[j] = when (elements[j].instruction) {
+                Instruction.ANY -> ANY
+                Instruction.TRY_CATCH -> TRY_CATCH
+                Instruction.LABEL -> LABEL
+                else -> INSTRUCTION
+            }
+            wild[j] = skip
+            if (kinds[j] == ANY) {
+                skip = true
+            } else if (kinds[j] != TRY_CATCH) {
+                skip = false
+            }
+        }
+        consumesRest = !instructions.isEmpty()
+            && instructions[instructions.size() - 1].instruction == Instruction.ANY
+    }
+
+    public fun setBackend(backend: MatcherBackend) {
+        if (backend != MatcherBackend.INTERPRETED && matcher == null) {
+            matcher = MatcherCompiler.compile(elements)
+        }
+        this.backend = backend
+    }
+
+    // Returns where each element was matched, or null if there
+    // is no way through the method. Everything the checks bound
+    // along the way is kept in the scope
+    public fun match(logger: StateLogger, classSet: ClassSet, scope: PatchScope?, method: MethodNode): MutableMap<PatchInstruction, Int>? {
+        val insns = method.instructions.toArray()
+        val search = Search(classSet, scope, method, insns)
+        val outer = scope?.mark()
+        var ok = false
+        try {
+            val found = search.run()
+            if (found == null) {
+                return null
+            }
+            val insnMap = hashMapOf<PatchInstruction, Int>()
+            for (frame in found) {
+                val j = frame.element
+                if (j == -1) continue
+                logger.println { j.toString() + ": " + elements[j] + " succeeded on " + insns[frame.position] }
+                if (kinds[j] != TRY_CATCH) {
+                    insnMap[elements[j]] = frame.position
+                }
+            }
+            ok = true
+            return insnMap
+        } finally {
+            if (scope != null) {
+                if (ok) {
+                    scope.commit(outer!!)
+                } else {
+                    search.abandon()
+                    scope.undo(outer!!)
+                }
+            }
+        }
+    }
+
+    private inner class Search(private val classSet: ClassSet,
+                               private val scope: PatchScope?,
+                               private val method: MethodNode,
+                               private val insns: Array<AbstractInsnNode>) {
+
+        private val n = insns.size
+        private val width = elements.size + 1
+        private val states = width.toLong() * (n + 1)
+        // Failed states reached without any bindings, and those
+        // reached with some keyed by the bindings made
+        private val failed = BitSet(width * (n + 1))
+        private val failedBound = HashSet<Long>()
+        // Every sequence of bindings seen is given an id, a path
+        // that binds something moves on to the id of the sequence
+        // with that binding added
+        private val bindings = HashMap<Long, Int>()
+        // Only line numbers and labels can follow the last match
+        private var end = n
+
+            ;{
+            while (end > 0 && (insns[end - 1] is LineNumberNode || insns[end - 1] is LabelNode)) {
+                end--
+            }
+        }
+
+        private val stack = ArrayList<Frame>()
+
+        // Returns the frames of the accepting path
+        fun run(): List<Frame>? {
+            stack.add(Frame(0, 0, 0))
+            while (!stack.isEmpty()) {
+                val frame = stack[stack.size() - 1]
+                if (frame.j == elements.size && frame.q >= end) {
+                    accept(stack)
+                    return stack
+                }
+                var child: Frame? = null
+                while (child == null && frame.alt < 2) {
+                    child = next(frame, frame.alt++)
+                }
+                if (child != null) {
+                    stack.add(child)
+                    continue
+                }
+                stack.remove(stack.size() - 1)
+                if (frame.sig == 0) {
+                    failed.set(frame.q * width + frame.j)
+                } else {
+                    failedBound.add(frame.sig * states + frame.q * width + frame.j)
+                }
+                if (frame.mark != -1) {
+                    scope!!.undo(frame.mark)
+                }
+            }
+            return null
+        }
+
+        // Returns the state the alternative of the frame leads to,
+        // or null if it fails or leads somewhere already failed
+        private fun next(frame: Frame, alt: Int): Frame? {
+            val q = frame.q
+            val j = frame.j
+            if (j == elements.size) {
+                return null
+            }
+            if (kinds[j] == ANY) {
+                if (alt != 0) return null
+                if (consumesRest && j == elements.size - 1) {
+                    return unless(Frame(n, j + 1, frame.sig))
+                }
+                return unless(Frame(q, j + 1, frame.sig))
+            }
+            if (kinds[j] == TRY_CATCH) {
+                if (alt != 0) return null
+                // The check doesn't look at the instruction but one
+                // still has to be there
+                var p = q
+                while (p < n && (insns[p] is LineNumberNode || insns[p] is FrameNode)) {
+                    p++
+                }
+                if (p >= n) return null
+                return probe(frame, p, p)
+            }
+            if (q >= n) {
+                return null
+            }
+            val insn = insns[q]
+            if (insn is LineNumberNode || insn is FrameNode || (insn is LabelNode && kinds[j] != LABEL)) {
+                return if (alt == 0) unless(Frame(q + 1, j, frame.sig)) else null
+            }
+            if (alt == 0) {
+                return probe(frame, q, q + 1)
+            }
+            // Skipped by a wildcard
+            return if (wild[j]) unless(Frame(q + 1, j, frame.sig)) else null
+        }
+
+        private fun unless(frame: Frame): Frame? {
+            val key = frame.q * width + frame.j
+            val dead = if (frame.sig == 0) failed.get(key) else failedBound.contains(frame.sig * states + key)
+            if (dead && frame.mark != -1) {
+                scope!!.undo(frame.mark)
+            }
+            return if (dead) null else frame
+        }
+
+        // Checks the element of the frame against the instruction
+        // at position, keeping what it binds until the path is
+        // backed out of
+        private fun probe(frame: Frame, position: Int, to: Int): Frame? {
+            val j = frame.j
+            val insn = insns[position]
+            val backend = backend
+            if (backend != MatcherBackend.INTERPRETED) {
+                val result = matcher!!.test(j, insn)
+                if (backend == MatcherBackend.GENERATED && result != MatcherCompiler.CHECK) {
+                    // Decisive results never depend on the scope
+                    return if (result == MatcherCompiler.YES) unless(Frame(to, j + 1, frame.sig, j, position)) else null
+                }
+                if (backend == MatcherBackend.VERIFY) {
+                    val checked = check(j, insn, null)
+                    if ((result == MatcherCompiler.NO && checked) || (result == MatcherCompiler.YES && !checked)) {
+                        throw IllegalStateException("Generated matcher disagrees with " + elements[j] + " on " + insn
+                            + " in " + method.name + method.desc)
+                    }
+                }
+            }
+            if (scope == null) {
+                if (!check(j, insn, null)) return null
+                return unless(Frame(to, j + 1, 0, j, position))
+            }
+            val mark = scope.mark()
+            // Writes of the check are kept apart until the path is
+            // accepted, reads are passed straight on
+            val parent = scope.recorder
+            val recorder = if (parent != null) ScopeRecorder(parent) else null
+            scope.recorder = recorder
+            var ok = false
+            try {
+                ok = check(j, insn, scope)
+            } finally {
+                scope.recorder = parent
+                if (!ok) {
+                    scope.undo(mark)
+                }
+            }
+            if (!ok) {
+                return null
+            }
+            var sig = frame.sig
+            if (scope.position() != mark) {
+                val step = sig * states + position * width + j
+                val known = bindings[step]
+                if (known != null) {
+                    sig = known
+                } else {
+                    sig = bindings.size() + 1
+                    bindings[step] = sig
+                }
+            }
+            val child = Frame(to, j + 1, sig, j, position, mark)
+            child.recorder = recorder
+            return unless(child)
+        }
+
+        private fun check(j: Int, insn: AbstractInsnNode, scope: PatchScope?): Boolean {
+            val element = elements[j]
+            return element.instruction.handler!!.check(classSet, scope, element, method, insn)
+        }
+
+        // Undoes the path if the search was stopped part way
+        fun abandon() {
+            for (i in stack.indices.reversed()) {
+                if (stack[i].mark != -1) {
+                    scope!!.undo(stack[i].mark)
+                }
+            }
+            stack.clear()
+        }
+
+        // Keeps the bindings and recorded writes of every check
+        // on the path
+        private fun accept(stack: List<Frame>) {
+            if (scope == null) return
+            for (frame in stack) {
+                frame.recorder?.commit()
+            }
+            for (i in stack.indices.reversed()) {
+                if (stack[i].mark != -1) {
+                    scope.commit(stack[i].mark)
+                }
+            }
+        }
+    }
+
+    // A state on the current path. element and position are the
+    // element checked to reach it and the instruction it matched,
+    // mark undoes what that check bound
+    private class Frame(val q: Int, val j: Int, val sig: Int,
+                        val element: Int = -1, val position: Int = -1, val mark: Int = -1) {
+        var alt = 0
+        var recorder: ScopeRecorder? = null
+    }
+
+    class object {
+        private val ANY = 0
+        private val TRY_CATCH = 1
+        private val LABEL = 2
+        private val INSTRUCTION = 3
+    }
+}
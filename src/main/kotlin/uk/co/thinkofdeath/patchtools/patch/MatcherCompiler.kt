@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.patch
+
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+import uk.co.thinkofdeath.patchtools.instruction.MatcherWriter
+
+import java.util.concurrent.atomic.AtomicInteger
+
+// Generates a class for the elements of an InstructionPattern
+// that tests an instruction against an element with a switch
+// instead of going through the handlers, which the JIT can
+// compile down to a few compares for each element
+public object MatcherCompiler {
+
+    public val NO: Int = 0
+    public val YES: Int = 1
+    public val CHECK: Int = 2
+
+    private val MATCHER = "uk/co/thinkofdeath/patchtools/patch/ElementMatcher"
+    private val ids = AtomicInteger()
+
+    public fun compile(elements: Array<PatchInstruction>): ElementMatcher {
+        val name = "uk/co/thinkofdeath/patchtools/patch/GeneratedMatcher$" + ids.incrementAndGet()
+        val cw = ClassWriter(ClassWriter.COMPUTE_FRAMES or ClassWriter.COMPUTE_MAXS)
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC or Opcodes.ACC_FINAL or Opcodes.ACC_SUPER,
+            name, null, "java/lang/Object", array(MATCHER))
+
+        val init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null)
+        init.visitCode()
+        init.visitVarInsn(Opcodes.ALOAD, 0)
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false)
+        init.visitInsn(Opcodes.RETURN)
+        init.visitMaxs(0, 0)
+        init.visitEnd()
+
+        val mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "test", "(ILorg/objectweb/asm/tree/AbstractInsnNode;)I", null, null)
+        mv.visitCode()
+        val fail = Label()
+        val check = Label()
+        if (elements.size > 0) {
+            val labels = Array<Label>(elements.size) { Label() }
+            mv.visitVarInsn(Opcodes.ILOAD, 1)
+            mv.visitTableSwitchInsn(0, elements.size - 1, check, *labels)
+            val writer = MatcherWriter(mv, fail)
+            for (i in elements.indices) {
+                mv.visitLabel(labels[i])
+                val element = elements[i]
+                val handler = element.instruction.handler
+                if (handler != null && handler.generate(writer, element)) {
+                    mv.visitInsn(Opcodes.ICONST_0 + YES)
+                } else {
+                    mv.visitInsn(Opcodes.ICONST_0 + CHECK)
+                }
+                mv.visitInsn(Opcodes.IRETURN)
+            }
+        }
+        mv.visitLabel(check)
+        mv.visitInsn(Opcodes.ICONST_0 + CHECK)
+        mv.visitInsn(Opcodes.IRETURN)
+        mv.visitLabel(fail)
+        mv.visitInsn(Opcodes.ICONST_0 + NO)
+        mv.visitInsn(Opcodes.IRETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+        cw.visitEnd()
+
+        // Each class gets its own loader so it can be unloaded
+        // along with the patch
+        val loader = MatcherLoader(javaClass<ElementMatcher>().getClassLoader())
+        val cls = loader.define(name.replace('/', '.'), cw.toByteArray())
+        return cls.newInstance() as ElementMatcher
+    }
+
+    private class MatcherLoader(parent: ClassLoader) : ClassLoader(parent) {
+        fun define(name: String, data: ByteArray): Class<*> {
+            return defineClass(name, data, 0, data.size)
+        }
+    }
+}
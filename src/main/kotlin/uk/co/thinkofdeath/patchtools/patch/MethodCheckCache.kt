@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.patch
+
+import org.objectweb.asm.tree.MethodNode
+import uk.co.thinkofdeath.patchtools.PatchScope
+import uk.co.thinkofdeath.patchtools.ScopeRecorder
+import uk.co.thinkofdeath.patchtools.logging.StateLogger
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
+
+import java.util.ArrayList
+import java.util.HashMap
+
+// Remembers the results of PatchMethod.check for a method node
+// along with what the check read from the scope. A search tends
+// to check the same method against the same node many times with
+// only unrelated parts of the scope changed, those checks are
+// replayed instead of matching every instruction again.
+// Not thread safe, each search should have its own
+public class MethodCheckCache(private val maxEntries: Int = 16) {
+
+    private val entries = HashMap<PatchMethod, HashMap<MethodNode, ArrayList<Entry>>>()
+
+    public var hits: Long = 0
+        private set
+    public var misses: Long = 0
+        private set
+
+    public fun check(logger: StateLogger, classSet: ClassSet, scope: PatchScope, method: PatchMethod, node: MethodNode): Boolean {
+        val list = entries.getOrPut(method, { hashMapOf() }).getOrPut(node, { arrayListOf() })
+        for (entry in list) {
+            if (entry.recorder.matches(scope)) {
+                hits++
+                logger.println("Using cached result " + entry.result)
+                entry.recorder.replay(scope)
+                return entry.result
+            }
+        }
+        misses++
+
+        val recorder = ScopeRecorder()
+        scope.recorder = recorder
+        val result = try {
+            method.check(logger, classSet, scope, node)
+        } finally {
+            scope.recorder = null
+        }
+        if (list.size() >= maxEntries) {
+            list.remove(0)
+        }
+        list.add(Entry(recorder, result))
+        return result
+    }
+
+    private class Entry(val recorder: ScopeRecorder, val result: Boolean)
+}
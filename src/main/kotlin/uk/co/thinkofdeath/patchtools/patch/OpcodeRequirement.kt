@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.patch
+
+import uk.co.thinkofdeath.patchtools.instruction.Instruction
+import uk.co.thinkofdeath.patchtools.matching.OpcodeIndex
+
+import java.util.Arrays
+import java.util.LinkedHashMap
+
+// The fewest of each opcode a method needs for the instructions
+// of a patch method to match it. Instructions that can match more
+// than one opcode are grouped by the opcodes they allow and each
+// group needs that many instructions using any of them
+public class OpcodeRequirement(instructions: List<PatchInstruction>) {
+
+    // Instructions that each use up a real instruction
+    private val size: Int
+    private val groups: Array<IntArray>
+    private val counts: IntArray
+    // Opcodes that are needed on their own
+    private val bits = LongArray(4)
+
+        ;{
+        var size = 0
+        val grouped = LinkedHashMap<String, IntArray>()
+        val needed = LinkedHashMap<String, Int>()
+        for (instruction in instructions) {
+            if (instruction.mode == Mode.ADD) continue
+            val insn = instruction.instruction
+            if (insn == Instruction.ANY || insn == Instruction.LABEL || insn == Instruction.TRY_CATCH) continue
+            size++
+            val opcodes = insn.handler?.getOpcodes(instruction)
+            if (opcodes == null) continue
+            val key = Arrays.toString(opcodes)
+            grouped[key] = opcodes
+            needed[key] = (needed[key] ?: 0) + 1
+            if (opcodes.size == 1) {
+                val opcode = opcodes[0]
+                bits[opcode ushr 6] = bits[opcode ushr 6] or (1L shl (opcode and 63))
+            }
+        }
+        this.size = size
+        groups = grouped.values().copyToArray()
+        counts = IntArray(groups.size)
+        var i = 0
+        for (count in needed.values()) {
+            counts[i++] = count
+        }
+    }
+
+    public fun isCoveredBy(summary: OpcodeIndex.Summary): Boolean {
+        if (summary.size < size) {
+            return false
+        }
+        for (i in bits.indices) {
+            if ((summary.bits[i] and bits[i]) != bits[i]) {
+                return false
+            }
+        }
+        for (i in groups.indices) {
+            var have = 0
+            for (opcode in groups[i]) {
+                have += summary.count(opcode)
+                if (have >= counts[i]) break
+            }
+            if (have < counts[i]) {
+                return false
+            }
+        }
+        return true
+    }
+}
@@ -188,6 +188,9 @@ public class PatchClass(internal val classes: PatchClasses,
         }
 
         val classWrapper = scope.getClass(ident.name)!!
+        // Methods are added below, the code has to be read first
+        // so the class file still lines up with the node
+        classWrapper.ensureCode()
 
         for (superModifier in superModifiers) {
             if (superModifier.mode == Mode.MATCH) continue
@@ -303,7 +306,9 @@ public class PatchClass(internal val classes: PatchClasses,
 
             val methodWrapper = scope.getMethod(classWrapper, it.ident.name, it.descRaw)!!
 
-            it.apply(classSet, scope, classWrapper.getMethodNode(methodWrapper)!!)
+            val node = classWrapper.getMethodNode(methodWrapper)!!
+            classWrapper.ensureCode(node)
+            it.apply(classSet, scope, node)
         }
     }
 
@@ -449,11 +454,10 @@ public class PatchClass(internal val classes: PatchClasses,
                     return false
                 }
 
-                val patchDesc = f.desc
                 val desc = Type.getType(fieldWrapper.desc)
 
-                if (!checkTypes(classSet, scope, patchDesc, desc)) {
-                    logger.println(StateLogger.typeMismatch(patchDesc, desc))
+                if (!checkTypes(classSet, scope, f.patchDesc, desc)) {
+                    logger.println(StateLogger.typeMismatch(f.desc, desc))
                     return false
                 }
 
@@ -497,26 +501,28 @@ public class PatchClass(internal val classes: PatchClasses,
                     return false
                 }
 
-                val patchDesc = m.desc
+                val patchDesc = m.patchDesc
                 val desc = Type.getMethodType(methodWrapper.desc)
+                val patchArgs = patchDesc.arguments!!
+                val args = desc.getArgumentTypes()
 
-                if (patchDesc.getArgumentTypes().size != desc.getArgumentTypes().size) {
-                    logger.println("Argument size mis-match " + patchDesc.getArgumentTypes().size + " != " + desc.getArgumentTypes().size)
+                if (patchArgs.size != args.size) {
+                    logger.println("Argument size mis-match " + patchArgs.size + " != " + args.size)
                     return false
                 }
 
-                for (i in 0..patchDesc.getArgumentTypes().size - 1) {
-                    val pt = patchDesc.getArgumentTypes()[i]
-                    val t = desc.getArgumentTypes()[i]
+                for (i in patchArgs.indices) {
+                    val pt = patchArgs[i]
+                    val t = args[i]
 
                     if (!checkTypes(classSet, scope, pt, t)) {
-                        logger.println(StateLogger.typeMismatch(pt, t))
+                        logger.println(StateLogger.typeMismatch(pt.type, t))
                         return false
                     }
                 }
 
-                if (!checkTypes(classSet, scope, patchDesc.getReturnType(), desc.getReturnType())) {
-                    logger.println(StateLogger.typeMismatch(patchDesc.getReturnType(), desc.getReturnType()))
+                if (!checkTypes(classSet, scope, patchDesc.returnType!!, desc.getReturnType())) {
+                    logger.println(StateLogger.typeMismatch(patchDesc.returnType!!.type, desc.getReturnType()))
                     return false
                 }
                 logger.println("ok")
@@ -527,7 +533,7 @@ public class PatchClass(internal val classes: PatchClasses,
         }
     }
 
-    public fun checkMethodsInstructions(logger: StateLogger, scope: PatchScope, classSet: ClassSet): Boolean {
+    public fun checkMethodsInstructions(logger: StateLogger, scope: PatchScope, classSet: ClassSet, cache: MethodCheckCache? = null): Boolean {
         val classWrapper = scope.getClass(ident.name)!!
         logger.println("- " + ident + " testing " + classWrapper.node.name)
         logger.indent()
@@ -539,7 +545,18 @@ public class PatchClass(internal val classes: PatchClasses,
 
                 logger.println("- " + m.ident + m.descRaw + " testing " + methodWrapper.name + methodWrapper.desc + " instructions")
 
-                if (!m.check(logger, classSet, scope, classWrapper.getMethodNode(methodWrapper)!!)) {
+                val node = classWrapper.getMethodNode(methodWrapper)!!
+                classWrapper.ensureCode(node)
+                if (!m.hasOpcodes(classSet, node)) {
+                    logger.println("Missing required opcodes")
+                    return false
+                }
+                val ok = if (cache != null) {
+                    cache.check(logger, classSet, scope, m, node)
+                } else {
+                    m.check(logger, classSet, scope, node)
+                }
+                if (!ok) {
                     return false
                 }
             }
@@ -573,12 +590,16 @@ public class PatchClass(internal val classes: PatchClasses,
         }
 
         public fun checkTypes(classSet: ClassSet, scope: PatchScope?, pt: Type, t: Type): Boolean {
-            if (pt.getSort() != t.getSort()) {
+            return checkTypes(classSet, scope, PatchType(pt), t)
+        }
+
+        public fun checkTypes(classSet: ClassSet, scope: PatchScope?, pt: PatchType, t: Type): Boolean {
+            if (pt.sort != t.getSort()) {
                 return false
             }
 
-            if (pt.getSort() == Type.OBJECT) {
-                val id = Ident(pt.getInternalName())
+            if (pt.sort == Type.OBJECT) {
+                val id = pt.ident!!
                 var cls = id.name
                 if (cls != "*") {
                     if (scope != null || !id.isWeak()) {
@@ -597,10 +618,10 @@ public class PatchClass(internal val classes: PatchClasses,
                         }
                     }
                 }
-            } else if (pt.getSort() == Type.ARRAY) {
-                return pt.getDimensions() == t.getDimensions() && checkTypes(classSet, scope, pt.getElementType(), t.getElementType())
+            } else if (pt.sort == Type.ARRAY) {
+                return pt.type.getDimensions() == t.getDimensions() && checkTypes(classSet, scope, pt.element!!, t.getElementType())
             } else {
-                if (pt != t) {
+                if (pt.type != t) {
                     return false
                 }
             }
@@ -19,11 +19,13 @@ package uk.co.thinkofdeath.patchtools.patch
 import uk.co.thinkofdeath.patchtools.lexer.Lexer
 import uk.co.thinkofdeath.patchtools.lexer.TokenType
 import uk.co.thinkofdeath.patchtools.lexer.Token
+import uk.co.thinkofdeath.patchtools.matching.MatcherBackend
 
 public class PatchClasses(reader: Lexer) {
 
     public val classes: MutableList<PatchClass> = arrayListOf()
     private val importedClasses = hashMapOf<String, String>()
+    private val byName = hashMapOf<String, PatchClass>()
 
         ;{
 
@@ -60,12 +62,33 @@ public class PatchClasses(reader: Lexer) {
                 .setLineNumber(token.lineNumber)
                 .setLineOffset(token.lineOffset)
         }
+        compile()
+    }
+
+    // Parses everything the matchers would otherwise parse each
+    // time they check something, the patch doesn't change after
+    // this so it can be shared between threads
+    private fun compile() {
+        for (cls in classes) {
+            if (cls.ident.name !in byName) {
+                byName[cls.ident.name] = cls
+            }
+            for (method in cls.methods) {
+                method.instructions.forEach { it.compile() }
+            }
+        }
+    }
+
+    // Switching to a generated backend generates the matchers the
+    // first time, later patches reuse them
+    public fun setBackend(backend: MatcherBackend) {
+        for (cls in classes) {
+            cls.methods.forEach { it.setBackend(backend) }
+        }
     }
 
     public fun getClass(name: String): PatchClass? {
-        return classes
-            .filter { it.ident.name == name }
-            .firstOrNull()
+        return byName[name]
     }
 
     internal fun import(cls: String) {
@@ -30,7 +30,7 @@ public class PatchField(public val owner: PatchClass,
 ) {
     public val descRaw: String
     public val desc: Type
-        get() = Type.getMethodType(descRaw)
+    public val patchDesc: PatchType
     public val mode: Mode
     val access: Int
 
@@ -53,6 +53,8 @@ public class PatchField(public val owner: PatchClass,
         }
         PatchClass.appendType(descBuilder, type.toString())
         descRaw = descBuilder.toString()
+        desc = Type.getMethodType(descRaw)
+        patchDesc = PatchType(desc)
 
     }
 }
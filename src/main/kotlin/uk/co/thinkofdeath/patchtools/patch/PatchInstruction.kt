@@ -16,9 +16,11 @@
 
 package uk.co.thinkofdeath.patchtools.patch
 
+import org.objectweb.asm.Type
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 
 import java.util.Arrays
+import java.util.regex.Pattern
 import uk.co.thinkofdeath.patchtools.lexer.Token
 import uk.co.thinkofdeath.patchtools.lexer.TokenType
 
@@ -27,7 +29,7 @@ public class PatchInstruction(
     it: Iterator<Token>) {
 
     public var instruction: Instruction
-    public var params: Array<String>
+    public val params: Array<String>
     public var meta: MutableList<String> = arrayListOf()
 
         ;{
@@ -37,6 +39,103 @@ public class PatchInstruction(
         params = args.copyOfRange(1, args.size)
     }
 
+    // Every param joined back together, for instructions that
+    // take a single value that can contain spaces
+    public val text: String = params.join(" ")
+
+    // Parsed forms of the params, filled in by compile once the
+    // patch has been read so the handlers don't parse the same
+    // strings every time they check an instruction. Nothing is
+    // written to these after that so they can be shared between
+    // threads
+    private val idents = arrayOfNulls<Ident>(params.size)
+    private val types = arrayOfNulls<Type>(params.size)
+    private val patchTypes = arrayOfNulls<PatchType>(params.size)
+    private val ints = IntArray(params.size)
+    private val isInt = BooleanArray(params.size)
+    // The value of a push instruction, parsed by its handler
+    public var constant: Any? = null
+        private set
+
+    public fun compile() {
+        for (i in params.indices) {
+            val param = params[i]
+            if (param.isEmpty()) continue
+            idents[i] = Ident(param)
+            if (intPattern.matcher(param).matches()) {
+                try {
+                    ints[i] = Integer.parseInt(param)
+                    isInt[i] = true
+                } catch (e: NumberFormatException) {
+                }
+            }
+        }
+        instruction.handler?.compile(this)
+    }
+
+    public fun isWild(index: Int): Boolean {
+        return params[index] == "*"
+    }
+
+    public fun ident(index: Int): Ident {
+        return idents[index] ?: Ident(params[index])
+    }
+
+    public fun int(index: Int): Int {
+        return if (isInt[index]) ints[index] else Integer.parseInt(params[index])
+    }
+
+    // A param is only ever one kind of type so all three share
+    // the same slot
+
+    public fun type(index: Int): Type {
+        return types[index] ?: Type.getType(params[index])
+    }
+
+    public fun objectType(index: Int): Type {
+        return types[index] ?: Type.getObjectType(params[index])
+    }
+
+    public fun methodType(index: Int): Type {
+        return types[index] ?: Type.getMethodType(params[index])
+    }
+
+    // The same types split up for PatchClass.checkTypes
+
+    public fun patchType(index: Int): PatchType {
+        return patchTypes[index] ?: PatchType(type(index))
+    }
+
+    public fun patchObjectType(index: Int): PatchType {
+        return patchTypes[index] ?: PatchType(objectType(index))
+    }
+
+    public fun patchMethodType(index: Int): PatchType {
+        return patchTypes[index] ?: PatchType(methodType(index))
+    }
+
+    // Called by the handlers from InstructionHandler.compile
+    // for the params that are types
+
+    public fun compileType(index: Int) {
+        types[index] = Type.getType(params[index])
+        patchTypes[index] = PatchType(types[index]!!)
+    }
+
+    public fun compileObjectType(index: Int) {
+        types[index] = Type.getObjectType(params[index])
+        patchTypes[index] = PatchType(types[index]!!)
+    }
+
+    public fun compileMethodType(index: Int) {
+        types[index] = Type.getMethodType(params[index])
+        patchTypes[index] = PatchType(types[index]!!)
+    }
+
+    public fun compileConstant(value: Any) {
+        constant = value
+    }
+
     override fun toString(): String {
         return "PatchInstruction{" +
             "mode=" + mode +
@@ -45,4 +144,8 @@ public class PatchInstruction(
             ", meta=" + meta +
             '}'
     }
+
+    class object {
+        private val intPattern = Pattern.compile("-?[0-9]+")
+    }
 }
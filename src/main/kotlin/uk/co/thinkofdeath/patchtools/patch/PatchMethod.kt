@@ -22,6 +22,9 @@ import uk.co.thinkofdeath.patchtools.PatchScope
 import uk.co.thinkofdeath.patchtools.instruction.Instruction
 import uk.co.thinkofdeath.patchtools.instruction.instructions.TryCatchInstruction
 import uk.co.thinkofdeath.patchtools.logging.StateLogger
+import uk.co.thinkofdeath.patchtools.matching.MatcherBackend
+import uk.co.thinkofdeath.patchtools.matching.MethodReferences
+import uk.co.thinkofdeath.patchtools.matching.OpcodeIndex
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet
 
 import java.util.*
@@ -38,11 +41,18 @@ public class PatchMethod(public val owner: PatchClass,
 ) {
     public val descRaw: String
     public val desc: Type
-        get() = Type.getMethodType(descRaw)
+    public val patchDesc: PatchType
     public val mode: Mode
     val access: Int
 
     public val instructions: MutableList<PatchInstruction> = ArrayList()
+    // Strings that the method being matched must load
+    public val requiredStrings: MutableSet<String> = HashSet()
+    // Methods and fields that the method being matched must use
+    public val requiredReferences: MutableSet<String> = HashSet()
+
+    private val pattern: InstructionPattern
+    private val opcodes: OpcodeRequirement
 
     // Used by countArrayTypes
     var dimCount = 0
@@ -84,6 +94,8 @@ public class PatchMethod(public val owner: PatchClass,
         }
         PatchClass.appendType(descBuilder, type.toString())
         descRaw = descBuilder.toString()
+        desc = Type.getMethodType(descRaw)
+        patchDesc = PatchType(desc)
 
         it.next().expect(TokenType.ENTER_BLOCK)
 
@@ -124,8 +136,14 @@ public class PatchMethod(public val owner: PatchClass,
             }
             patchAnnotations = insn.meta
             instructions.add(insn)
+            if (insn.instruction.handler != null && insn.mode != Mode.ADD) {
+                requiredStrings.addAll(insn.instruction.handler!!.getRequiredStrings(insn))
+                requiredReferences.addAll(insn.instruction.handler!!.getRequiredReferences(insn))
+            }
             token = it.next()
         }
+        pattern = InstructionPattern(instructions)
+        opcodes = OpcodeRequirement(instructions)
     }
 
     fun countArrayTypes(it: Iterator<Token>): Token {
@@ -194,6 +212,9 @@ public class PatchMethod(public val owner: PatchClass,
         }
 
         methodNode.instructions = outInstructions
+        // Anything worked out from the old code is now wrong
+        classSet.getIndexIfPresent<MethodReferences.Cache>(MethodReferences.KEY)?.invalidate(methodNode)
+        classSet.getIndexIfPresent<OpcodeIndex>(OpcodeIndex.KEY)?.invalidate(methodNode)
     }
 
     public fun check(logger: StateLogger, classSet: ClassSet, scope: PatchScope?, methodNode: MethodNode): Boolean {
@@ -205,32 +226,30 @@ public class PatchMethod(public val owner: PatchClass,
                 return false
             }
 
-            val patchDesc = desc
             val desc = Type.getMethodType(methodNode.desc)
+            val patchArgs = patchDesc.arguments!!
+            val args = desc.getArgumentTypes()
 
-            if (patchDesc.getArgumentTypes().size != desc.getArgumentTypes().size) {
-                logger.println("Argument size mis-match " + patchDesc.getArgumentTypes().size + " != " + desc.getArgumentTypes().size)
+            if (patchArgs.size != args.size) {
+                logger.println("Argument size mis-match " + patchArgs.size + " != " + args.size)
                 return false
             }
 
-            for (i in 0..patchDesc.getArgumentTypes().size - 1) {
-                val pt = patchDesc.getArgumentTypes()[i]
-                val t = desc.getArgumentTypes()[i]
+            for (i in patchArgs.indices) {
+                val pt = patchArgs[i]
+                val t = args[i]
 
                 if (!PatchClass.checkTypes(classSet, scope, pt, t)) {
-                    logger.println(StateLogger.typeMismatch(pt, t))
+                    logger.println(StateLogger.typeMismatch(pt.type, t))
                     return false
                 }
             }
 
-            if (!PatchClass.checkTypes(classSet, scope, patchDesc.getReturnType(), desc.getReturnType())) {
-                logger.println(StateLogger.typeMismatch(patchDesc.getReturnType(), desc.getReturnType()))
+            if (!PatchClass.checkTypes(classSet, scope, patchDesc.returnType!!, desc.getReturnType())) {
+                logger.println(StateLogger.typeMismatch(patchDesc.returnType!!.type, desc.getReturnType()))
                 return false
             }
 
-            var position = 0
-            val insns = methodNode.instructions
-
             if (methodNode.access and methodModifiers != access) {
                 logger.println("Incorrect access modifiers " +
                     "${Integer.toBinaryString(methodNode.access and methodModifiers)} != " +
@@ -238,95 +257,11 @@ public class PatchMethod(public val owner: PatchClass,
                 return false
             }
 
-            var wildcard = false
-            var wildcardPosition = -1
-            var wildcardPatchPosition = -1
-
-            val insnMap = hashMapOf<PatchInstruction, Int>()
-
             inInstructions = true
             logger.indent()
 
-            var i = 0
-
-            @checkLoop
-            while (i < instructions.size()) {
-                try {
-                    val patchInstruction = instructions.get(i)
-                    if (patchInstruction.mode == Mode.ADD) continue
-
-                    if (patchInstruction.instruction == Instruction.ANY) {
-                        logger.println("$i: Wild-card")
-                        wildcard = true
-                        wildcardPosition = -1
-                        wildcardPatchPosition = -1
-                        if (i == instructions.size() - 1) {
-                            position = insns.size()
-                        }
-                        continue
-                    }
-                    while (true) {
-
-                        if (position >= insns.size()) {
-                            if (!wildcard) {
-                                logger.println("Not enough instructions")
-                                return false
-                            }
-                            break
-                        }
-                        val insn = insns.get(position)
-
-                        val allowLabel = insn is LabelNode
-                            && (patchInstruction.instruction == Instruction.LABEL
-                            || patchInstruction.instruction == Instruction.TRY_CATCH)
-
-                        if (insn !is LineNumberNode
-                            && insn !is FrameNode
-                            && (insn !is LabelNode || allowLabel)) {
-                            if (patchInstruction.instruction.handler!!.check(classSet, scope, patchInstruction, methodNode, insn)) {
-                                logger.println { i.toString() + ": " + patchInstruction + " succeeded on " + insn }
-                                if (patchInstruction.instruction == Instruction.TRY_CATCH) continue@checkLoop
-                                if (wildcard) {
-                                    wildcardPosition = position
-                                    wildcardPatchPosition = i
-                                    logger.println("(Saving wildcard state)")
-                                }
-                                insnMap.put(patchInstruction, position)
-                                wildcard = false
-                                position++
-                                continue@checkLoop
-                            } else {
-                                logger.println { i.toString() + ": " + patchInstruction + " failed on " + insn }
-                                if (!wildcard) {
-                                    if (wildcardPosition != -1) {
-                                        logger.println("Failed")
-                                        wildcard = true
-                                        position = ++wildcardPosition
-                                        i = --wildcardPatchPosition
-                                        logger.println("Rolling back to the last wildcard")
-                                        continue@checkLoop
-                                    } else {
-                                        logger.println("Failed")
-                                        return false
-                                    }
-                                }
-                                logger.println("Continuing because of wild-card")
-                            }
-                        }
-                        position++
-                    }
-                    return false
-                } finally {
-                    i++
-                }
-            }
-
-            for (pos in position..insns.size() - 1) {
-                val insn = insns.get(pos)
-                if (insn is LineNumberNode || insn is LabelNode) {
-                    continue
-                }
-                logger.println("Too many instructions")
+            val insnMap = matchInstructions(logger, classSet, scope, methodNode)
+            if (insnMap == null) {
                 return false
             }
             inInstructions = false
@@ -349,6 +284,27 @@ public class PatchMethod(public val owner: PatchClass,
         }
     }
 
+    // Whether the method has enough of the opcodes the
+    // instructions need, checked without walking it
+    public fun hasOpcodes(classSet: ClassSet, methodNode: MethodNode): Boolean {
+        val index = classSet.getIndex(OpcodeIndex.KEY, { OpcodeIndex() })
+        return opcodes.isCoveredBy(index.get(methodNode))
+    }
+
+    public fun setBackend(backend: MatcherBackend) {
+        pattern.setBackend(backend)
+    }
+
+    // The instructions are matched in one search over the
+    // automaton of the pattern, see InstructionPattern
+    private fun matchInstructions(logger: StateLogger, classSet: ClassSet, scope: PatchScope?, methodNode: MethodNode): MutableMap<PatchInstruction, Int>? {
+        val insnMap = pattern.match(logger, classSet, scope, methodNode)
+        if (insnMap == null) {
+            logger.println("No path through the instructions")
+        }
+        return insnMap
+    }
+
     private inner class LabelCloneMap : MutableMap<LabelNode, LabelNode> {
 
         private val internal = HashMap<LabelNode, LabelNode>()
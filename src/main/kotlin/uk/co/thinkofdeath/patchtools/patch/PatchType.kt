@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.patch
+
+import org.objectweb.asm.Type
+
+// A type written in a patch split up once ahead of time, the
+// class names in it may be weak so they are kept as idents.
+// PatchClass.checkTypes compares these against the types of the
+// class set without building anything
+public class PatchType(public val type: Type) {
+
+    public val sort: Int = type.getSort()
+    // Only set for objects
+    public val ident: Ident? = if (sort == Type.OBJECT) Ident(type.getInternalName()) else null
+    // Only set for arrays
+    public val element: PatchType? = if (sort == Type.ARRAY) PatchType(type.getElementType()) else null
+    // Only set for methods
+    public val arguments: Array<PatchType>? = if (sort == Type.METHOD) {
+        type.getArgumentTypes().map { PatchType(it) }.copyToArray()
+    } else null
+    public val returnType: PatchType? = if (sort == Type.METHOD) PatchType(type.getReturnType()) else null
+
+    override fun toString(): String {
+        return type.toString()
+    }
+}
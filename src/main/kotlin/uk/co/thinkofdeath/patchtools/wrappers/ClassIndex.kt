@@ -0,0 +1,27 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.patchtools.wrappers
+
+// An index over a class set that can be brought up to date
+// when only some of the classes changed instead of being
+// thrown away
+public trait ClassIndex {
+
+    // Called with the names of the classes whose nodes were
+    // modified. Returns false if the index has to be rebuilt
+    fun update(classes: Set<String>): Boolean
+}
@@ -17,15 +17,31 @@
 package uk.co.thinkofdeath.patchtools.wrappers
 
 import org.objectweb.asm.ClassReader
-import org.objectweb.asm.Opcodes
-import org.objectweb.asm.tree.ClassNode
 
 import java.io.*
+import java.util.HashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
 
 public class ClassPathWrapper(vararg libs: File) : Closeable {
 
     private val searchFiles: Array<out ZipFile>
+    // Every class in the libraries and where it is, the first
+    // library with a class wins. Built from the central directory
+    // ZipFile already has in memory so a lookup doesn't search
+    // each library in turn
+    private val entries = HashMap<String, Location>()
+    // Names that aren't in the libraries or on the class path.
+    // Lookups of missing classes are common (super classes and
+    // types of library members) and the class path is slow to
+    // search
+    private val missing = ConcurrentHashMap<String, Boolean>()
+
+    // Where parsed library classes are kept, shared by every
+    // wrapper by default so class sets over the same libraries
+    // only read each class once
+    public var cache: LibraryCache = LibraryCache.SHARED
 
     {
         try {
@@ -37,16 +53,46 @@ public class ClassPathWrapper(vararg libs: File) : Closeable {
         } catch (e: IOException) {
             throw UncheckedIOException(e)
         }
-
+        for (i in searchFiles.indices) {
+            val zip = searchFiles[i]
+            // A library that changed on disk has to be read again
+            val source = libs[i].getCanonicalPath() + "@" + libs[i].lastModified()
+            val it = zip.entries()
+            while (it.hasMoreElements()) {
+                val entry = it.nextElement()
+                val name = entry.getName()
+                if (entry.isDirectory() || !name.endsWith(".class")) continue
+                val clazz = name.substring(0, name.length() - ".class".length())
+                if (!entries.containsKey(clazz)) {
+                    entries[clazz] = Location(source, zip, entry)
+                }
+            }
+        }
     }
 
+    // May be called from multiple match groups at once, ZipFile
+    // handles concurrent reads itself and the index isn't changed
+    // after it is built
     public fun find(classSet: ClassSet, clazz: String): ClassWrapper? {
+        if (missing.containsKey(clazz)) {
+            return null
+        }
+        val location = entries[clazz]
+        val source = location?.source ?: CLASS_PATH
+        // The node is shared between class sets, each one gets
+        // its own wrapper
+        val node = cache.get(source, clazz, { read(location, clazz) })
+        if (node == null) {
+            missing[clazz] = true
+            return null
+        }
+        return ClassWrapper(classSet, node, true)
+    }
+
+    private fun read(location: Location?, clazz: String): StubClassNode? {
         var inStr: InputStream? = null
-        for (zip in searchFiles) {
-            val entry = zip.getEntry(clazz + ".class")
-            if (entry == null) continue
-            inStr = zip.getInputStream(entry)
-            break
+        if (location != null) {
+            inStr = location.zip.getInputStream(location.entry)
         }
         if (inStr == null) {
             inStr = javaClass.getResourceAsStream("/" + clazz + ".class")
@@ -56,18 +102,25 @@ public class ClassPathWrapper(vararg libs: File) : Closeable {
         }
         val stream = inStr!!;
         stream.use { ignored ->
-            val data = stream.readBytes()
-            val node = ClassNode(Opcodes.ASM5)
-            val reader = ClassReader(data)
-            reader.accept(node, 0)
-            return ClassWrapper(classSet, node, true)
+            // Library classes are only used to walk the hierarchy
+            // and resolve members so they are read as stubs
+            val node = StubClassNode()
+            val reader = ClassReader(stream.readBytes())
+            reader.accept(node, StubClassNode.FLAGS)
+            return node
         }
-
     }
 
+    private class Location(val source: String, val zip: ZipFile, val entry: ZipEntry)
+
     override fun close() {
         for (zip in searchFiles) {
             zip.close()
         }
     }
+
+    class object {
+        // The source of classes found through the class loader
+        private val CLASS_PATH = "<classpath>"
+    }
 }
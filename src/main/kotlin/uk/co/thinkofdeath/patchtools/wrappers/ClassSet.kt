@@ -16,24 +16,38 @@
 
 package uk.co.thinkofdeath.patchtools.wrappers
 
+import java.io.File
 import java.io.InputStream
 import org.objectweb.asm.tree.ClassNode
 import uk.co.thinkofdeath.patchtools.PatchScope
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.commons.Remapper
-import java.util.HashMap
+import java.util.ArrayDeque
 import java.util.ArrayList
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.commons.RemappingClassAdapter
 import java.util.HashSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
 
 public class ClassSet(private val classPath: ClassPathWrapper) : Iterable<String> {
 
-    private val classes = HashMap<String, ClassWrapper>()
+    // Match groups are worked on in parallel and library
+    // classes are loaded lazily so lookups may add to this
+    // from multiple threads
+    private val classes = ConcurrentHashMap<String, ClassWrapper>()
 
     private var simplified: Boolean = false
 
+    // Lookup tables built over the classes in the set by the
+    // matcher, these are thrown away whenever the set changes
+    private val indexes = hashMapOf<String, Any>()
+
     public fun simplify() {
         if (simplified) return
         simplified = true
@@ -136,18 +150,116 @@ public class ClassSet(private val classPath: ClassPathWrapper) : Iterable<String
     }
 
     public fun add(clazz: ByteArray) {
+        val wrapper = readClass(clazz)
+        classes.put(wrapper.node.name, wrapper)
+        invalidate()
+    }
+
+    // Adds every class in the jar. The entries are read and
+    // then parsed on the pool
+    public fun addJar(file: File, pool: ForkJoinPool = ForkJoinPool.commonPool()): LoadTimings {
+        val start = System.nanoTime()
+        val data = ZipFile(file).use {
+            val zip = it
+            val entries = ArrayList<ZipEntry>()
+            val names = zip.entries()
+            while (names.hasMoreElements()) {
+                val entry = names.nextElement()
+                if (entry.isDirectory() || !entry.getName().endsWith(".class")) continue
+                entries.add(entry)
+            }
+            val data = arrayOfNulls<ByteArray>(entries.size())
+            run(pool, ReadTask(zip, entries, data, 0, entries.size()))
+            data.map { it!! }
+        }
+        val read = System.nanoTime() - start
+        val timings = addAll(data, pool)
+        return LoadTimings(timings.classes, read, timings.parseNanos, timings.publishNanos)
+    }
+
+    // Parses the classes in parallel on the pool and then adds
+    // them all at once
+    public fun addAll(data: List<ByteArray>, pool: ForkJoinPool = ForkJoinPool.commonPool()): LoadTimings {
+        val start = System.nanoTime()
+        val wrappers = arrayOfNulls<ClassWrapper>(data.size())
+        run(pool, ParseTask(data, wrappers, 0, data.size()))
+        val parsed = System.nanoTime()
+        for (wrapper in wrappers) {
+            classes.put(wrapper!!.node.name, wrapper)
+        }
+        invalidate()
+        return LoadTimings(wrappers.size, 0, parsed - start, System.nanoTime() - parsed)
+    }
+
+    // Joins the pool's work if already running on it, otherwise
+    // waits for the pool to run the task
+    private fun run(pool: ForkJoinPool, task: ForkJoinTask<*>) {
+        if (ForkJoinTask.getPool() == pool) {
+            task.invoke()
+        } else {
+            pool.invoke(task)
+        }
+    }
+
+    // Only the header and members are read, most classes are
+    // ruled out by those. The method bodies are read from the
+    // bytes when something first needs them
+    private fun readClass(clazz: ByteArray): ClassWrapper {
         val classReader = ClassReader(clazz)
         val node = ClassNode(Opcodes.ASM5)
-        classReader.accept(node, 0)
-        add(node)
+        classReader.accept(node, ClassReader.SKIP_CODE or ClassReader.SKIP_DEBUG)
+        return ClassWrapper(this, node, false, clazz)
     }
 
     public fun add(node: ClassNode) {
         classes.put(node.name, ClassWrapper(this, node))
+        invalidate()
     }
 
     public fun remove(name: String) {
         classes.remove(name)
+        invalidate()
+    }
+
+    public fun <T : Any> getIndex(key: String, create: () -> T): T {
+        synchronized(indexes) {
+            val index = indexes[key]
+            if (index != null) {
+                return index as T
+            }
+            val created = create()
+            indexes[key] = created
+            return created
+        }
+    }
+
+    public fun <T : Any> getIndexIfPresent(key: String): T? {
+        synchronized(indexes) {
+            return indexes[key] as T?
+        }
+    }
+
+    // Must be called after modifying any of the class nodes
+    // in the set
+    public fun invalidate() {
+        synchronized(indexes) {
+            indexes.clear()
+        }
+    }
+
+    // Like invalidate but when only the named classes were
+    // modified. Indexes that can update themselves re-read just
+    // those classes, the rest are thrown away
+    public fun invalidate(classes: Set<String>) {
+        synchronized(indexes) {
+            val it = indexes.values().iterator()
+            while (it.hasNext()) {
+                val index = it.next()
+                if (index !is ClassIndex || !index.update(classes)) {
+                    it.remove()
+                }
+            }
+        }
     }
 
     public fun getClass(name: String): ByteArray? {
@@ -156,6 +268,7 @@ public class ClassSet(private val classPath: ClassPathWrapper) : Iterable<String
         if (wrapper == null || wrapper.isHidden()) {
             return null
         }
+        wrapper.ensureCode()
         wrapper.node.version = Opcodes.V1_8
         wrapper.node.accept(classWriter)
         return classWriter.toByteArray()
@@ -178,11 +291,37 @@ public class ClassSet(private val classPath: ClassPathWrapper) : Iterable<String
         if (cl == null) {
             cl = classPath.find(this, name)
             if (cl == null) return null
-            classes.put(cl!!.node.name, cl)
+            // Another thread may have loaded the same class, only
+            // one wrapper may be used for a class
+            cl = classes.putIfAbsent(cl!!.node.name, cl) ?: cl
         }
         return cl
     }
 
+    // Every class the node extends or implements, directly or
+    // not, that can be found. Library classes are included
+    public fun getSupers(node: ClassNode): List<ClassNode> {
+        val supers = ArrayList<ClassNode>()
+        val visited = HashSet<String>()
+        val queue = ArrayDeque<String>()
+        if (node.superName != null) {
+            queue.add(node.superName)
+        }
+        queue.addAll(node.interfaces)
+        while (!queue.isEmpty()) {
+            val name = queue.poll()
+            if (!visited.add(name)) continue
+            val cls = getClassWrapper(name)
+            if (cls == null) continue
+            supers.add(cls.node)
+            if (cls.node.superName != null) {
+                queue.add(cls.node.superName)
+            }
+            queue.addAll(cls.node.interfaces)
+        }
+        return supers
+    }
+
     public fun classes(): Array<String> {
         return classes.keySet().copyToArray()
     }
@@ -193,19 +332,58 @@ public class ClassSet(private val classPath: ClassPathWrapper) : Iterable<String
         if (!stripHidden) {
             return classes()
         }
-        if (hiddenStrippedCache == null) {
-            hiddenStrippedCache = classes
-                .filterValues { !it.isHidden() }
-                .map { it.getKey() }
-                .copyToArray()
+        synchronized(this) {
+            if (hiddenStrippedCache == null) {
+                hiddenStrippedCache = classes
+                    .filterValues { !it.isHidden() }
+                    .map { it.getKey() }
+                    .copyToArray()
+            }
+            return hiddenStrippedCache!!
         }
-        return hiddenStrippedCache!!
     }
 
     override fun iterator(): Iterator<String> {
         return classes.keySet().iterator()
     }
 
+    // ZipFile can be read from multiple threads, each entry is
+    // inflated by the thread reading it
+    private class ReadTask(private val zip: ZipFile,
+                           private val entries: List<ZipEntry>,
+                           private val data: Array<ByteArray?>,
+                           private val from: Int,
+                           private val to: Int) : RecursiveAction() {
+
+        override fun compute() {
+            if (to - from <= PARSE_BATCH) {
+                for (i in from..to - 1) {
+                    data[i] = zip.getInputStream(entries[i]).use { it.readBytes() }
+                }
+                return
+            }
+            val mid = (from + to) / 2
+            ForkJoinTask.invokeAll(ReadTask(zip, entries, data, from, mid), ReadTask(zip, entries, data, mid, to))
+        }
+    }
+
+    private inner class ParseTask(private val data: List<ByteArray>,
+                                  private val wrappers: Array<ClassWrapper?>,
+                                  private val from: Int,
+                                  private val to: Int) : RecursiveAction() {
+
+        override fun compute() {
+            if (to - from <= PARSE_BATCH) {
+                for (i in from..to - 1) {
+                    wrappers[i] = readClass(data[i])
+                }
+                return
+            }
+            val mid = (from + to) / 2
+            ForkJoinTask.invokeAll(ParseTask(data, wrappers, from, mid), ParseTask(data, wrappers, mid, to))
+        }
+    }
+
     private inner class ClassSetWriter(flags: Int) : ClassWriter(flags) {
 
         override fun getCommonSuperClass(type1: String, type2: String): String {
@@ -291,4 +469,9 @@ public class ClassSet(private val classPath: ClassPathWrapper) : Iterable<String
             return name
         }
     }
-}
\ No newline at end of file
+
+    class object {
+        // Classes read or parsed by a task before it stops splitting
+        private val PARSE_BATCH = 64
+    }
+}
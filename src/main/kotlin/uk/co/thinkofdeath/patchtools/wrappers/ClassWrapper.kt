@@ -16,13 +16,20 @@
 
 package uk.co.thinkofdeath.patchtools.wrappers
 
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.Opcodes
 import org.objectweb.asm.tree.ClassNode
 import org.objectweb.asm.tree.MethodNode
 import org.objectweb.asm.tree.FieldNode
 
-public class ClassWrapper(public val classSet: ClassSet, public val node: ClassNode, private val hidden: Boolean = false) {
+public class ClassWrapper(public val classSet: ClassSet, public val node: ClassNode, private val hidden: Boolean = false,
+                          code: ByteArray? = null) {
     public val methods: MutableList<MethodWrapper> = arrayListOf()
-    public val fields: MutableList<FieldWrapper> = arrayListOf();
+    public val fields: MutableList<FieldWrapper> = arrayListOf()
+    // The class file the node was read from without its code and
+    // debug info, kept until something needs the method bodies
+    private volatile var code: ByteArray? = code;
 
     {
         node.methods.forEach {
@@ -37,6 +44,63 @@ public class ClassWrapper(public val classSet: ClassSet, public val node: ClassN
         return hidden
     }
 
+    // Fills in the bodies of the node's methods from the class
+    // file. The method nodes themselves are kept since matches and
+    // indexes refer to them
+    public fun ensureCode() {
+        if (code == null) return
+        synchronized(this) {
+            val data = code
+            if (data == null) return
+            val full = readFull(data)
+            for (i in node.methods.indices) {
+                val method = node.methods[i]
+                val other = full.methods[i]
+                method.instructions = other.instructions
+                method.tryCatchBlocks = other.tryCatchBlocks
+                method.localVariables = other.localVariables
+                method.parameters = other.parameters
+                method.maxStack = other.maxStack
+                method.maxLocals = other.maxLocals
+                // Annotations on types inside the code are only
+                // read with it
+                method.visibleTypeAnnotations = other.visibleTypeAnnotations
+                method.invisibleTypeAnnotations = other.invisibleTypeAnnotations
+                method.visibleLocalVariableAnnotations = other.visibleLocalVariableAnnotations
+                method.invisibleLocalVariableAnnotations = other.invisibleLocalVariableAnnotations
+            }
+            node.sourceFile = full.sourceFile
+            node.sourceDebug = full.sourceDebug
+            code = null
+        }
+    }
+
+    // Loads the code of the class declaring the method, which
+    // may be a super class of this one
+    public fun ensureCode(method: MethodNode) {
+        if (node.methods.any { it.identityEquals(method) }) {
+            ensureCode()
+            return
+        }
+        classSet.getClassWrapper(node.superName)?.ensureCode(method)
+    }
+
+    // Passes the code to the visitor straight from the class file
+    // without keeping it. Returns false once the code has been
+    // read into the node, it has to be walked there instead
+    public fun readCode(visitor: ClassVisitor): Boolean {
+        val data = code
+        if (data == null) return false
+        ClassReader(data).accept(visitor, ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES)
+        return true
+    }
+
+    private fun readFull(data: ByteArray): ClassNode {
+        val full = ClassNode(Opcodes.ASM5)
+        ClassReader(data).accept(full, 0)
+        return full
+    }
+
     // Shouldn't ever been updated so we cache
     private var methodCache: Array<MethodWrapper>? = null
 
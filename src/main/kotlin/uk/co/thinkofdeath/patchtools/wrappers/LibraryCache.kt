@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.co.thinkofdeath.patchtools.wrappers
+
+import java.util.LinkedHashMap
+
+// Library classes parsed as stubs, keyed by the library they came
+// from and their name. Stubs aren't changed once read so any
+// number of class sets can share them. The least recently used
+// stubs are dropped once the cache is full
+public class LibraryCache(private val maxSize: Int) {
+
+    // Kept in access order so the first entry is the one used
+    // least recently
+    private val entries = LinkedHashMap<Key, StubClassNode>(16, 0.75f, true)
+
+    private var hits: Long = 0
+    private var misses: Long = 0
+    private var evictions: Long = 0
+
+    // Returns the cached stub or reads it with load. Loading is
+    // done outside of the lock so two threads may both read the
+    // same class, they'll be the same and only one is kept
+    public fun get(source: String, name: String, load: () -> StubClassNode?): StubClassNode? {
+        val key = Key(source, name)
+        synchronized(entries) {
+            val node = entries[key]
+            if (node != null) {
+                hits++
+                return node
+            }
+            misses++
+        }
+        val loaded = load()
+        if (loaded == null) {
+            return null
+        }
+        synchronized(entries) {
+            val node = entries[key]
+            if (node != null) {
+                return node
+            }
+            entries[key] = loaded
+            while (entries.size() > maxSize) {
+                val it = entries.keySet().iterator()
+                it.next()
+                it.remove()
+                evictions++
+            }
+            return loaded
+        }
+    }
+
+    public fun clear() {
+        synchronized(entries) {
+            entries.clear()
+        }
+    }
+
+    public fun getStats(): Stats {
+        synchronized(entries) {
+            return Stats(hits, misses, evictions, entries.size())
+        }
+    }
+
+    private data class Key(val source: String, val name: String)
+
+    public class Stats(public val hits: Long,
+                       public val misses: Long,
+                       public val evictions: Long,
+                       public val size: Int) {
+
+        override fun toString(): String {
+            return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", size: " + size
+        }
+    }
+
+    class object {
+        // Enough for the parts of the JDK and a few libraries that
+        // patches normally reach
+        public val SHARED: LibraryCache = LibraryCache(20000)
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.co.thinkofdeath.patchtools.wrappers
+
+import java.util.concurrent.TimeUnit
+
+// How long each phase of a bulk add to a class set took
+public class LoadTimings(public val classes: Int,
+                         public val readNanos: Long,
+                         public val parseNanos: Long,
+                         public val publishNanos: Long) {
+
+    public fun totalNanos(): Long {
+        return readNanos + parseNanos + publishNanos
+    }
+
+    override fun toString(): String {
+        return "Loaded " + classes + " classes in " + millis(totalNanos()) + "ms" +
+            " (read: " + millis(readNanos) + "ms" +
+            ", parse: " + millis(parseNanos) + "ms" +
+            ", publish: " + millis(publishNanos) + "ms)"
+    }
+
+    private fun millis(nanos: Long): Long {
+        return TimeUnit.NANOSECONDS.toMillis(nanos)
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.co.thinkofdeath.patchtools.wrappers
+
+import org.objectweb.asm.*
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FieldNode
+import org.objectweb.asm.tree.MethodNode
+
+// A library class with only what library classes are used for,
+// the hierarchy and the access, names and descriptors of the
+// members. Nothing inside the members is visited so their code,
+// annotations and attributes are never read
+class StubClassNode : ClassNode(Opcodes.ASM5) {
+
+    override fun visitSource(file: String?, debug: String?) {
+    }
+
+    override fun visitOuterClass(owner: String?, name: String?, desc: String?) {
+    }
+
+    override fun visitAnnotation(desc: String?, visible: Boolean): AnnotationVisitor? {
+        return null
+    }
+
+    override fun visitTypeAnnotation(typeRef: Int, typePath: TypePath?, desc: String?, visible: Boolean): AnnotationVisitor? {
+        return null
+    }
+
+    override fun visitAttribute(attr: Attribute?) {
+    }
+
+    override fun visitInnerClass(name: String?, outerName: String?, innerName: String?, access: Int) {
+    }
+
+    override fun visitField(access: Int, name: String?, desc: String?, signature: String?, value: Any?): FieldVisitor? {
+        fields.add(FieldNode(Opcodes.ASM5, access, name, desc, null, null))
+        return null
+    }
+
+    override fun visitMethod(access: Int, name: String?, desc: String?, signature: String?, exceptions: Array<String>?): MethodVisitor? {
+        methods.add(MethodNode(Opcodes.ASM5, access, name, desc, null, null))
+        return null
+    }
+
+    class object {
+        // Frames are part of the code but skipping them as well
+        // saves expanding them if the code is ever read
+        public val FLAGS: Int = ClassReader.SKIP_CODE or ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES
+    }
+}
@@ -18,6 +18,8 @@ package uk.co.thinkofdeath.patchtools;
 
 import org.junit.Test;
 import uk.co.thinkofdeath.patchtools.disassemble.Disassembler;
+import uk.co.thinkofdeath.patchtools.matching.MatchOptions;
+import uk.co.thinkofdeath.patchtools.matching.MatcherBackend;
 import uk.co.thinkofdeath.patchtools.wrappers.ClassPathWrapper;
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet;
 
@@ -27,6 +29,19 @@ public class LoopTest {
 
     @Test
     public void loop() {
+        loop(new MatchOptions());
+    }
+
+    @Test
+    public void loopVerifyBackend() {
+        // Labels, jumps, switches and IINC all have to match the
+        // same way through the generated matchers
+        MatchOptions options = new MatchOptions();
+        options.setBackend(MatcherBackend.VERIFY);
+        loop(options);
+    }
+
+    private void loop(MatchOptions options) {
         ClassSet classSet = new ClassSet(new ClassPathWrapper());
         classSet.add(
                 Util.getClass("uk/co/thinkofdeath/patchtools/testcode/LoopTestClass")
@@ -36,6 +51,7 @@ public class LoopTest {
 
         String patch = disassembler.disassemble("uk/co/thinkofdeath/patchtools/testcode/LoopTestClass");
         Patcher patcher = new Patcher(classSet);
+        patcher.setOptions(options);
         patcher.apply(new StringReader(patch));
     }
 }
@@ -17,12 +17,38 @@
 package uk.co.thinkofdeath.patchtools;
 
 import org.junit.Test;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import uk.co.thinkofdeath.patchtools.lexer.Lexer;
+import uk.co.thinkofdeath.patchtools.logging.StateLogger;
+import uk.co.thinkofdeath.patchtools.matching.MatchGenerator;
+import uk.co.thinkofdeath.patchtools.matching.MatchOptions;
+import uk.co.thinkofdeath.patchtools.matching.MatchSolver;
+import uk.co.thinkofdeath.patchtools.matching.MatcherBackend;
+import uk.co.thinkofdeath.patchtools.matching.VariableOrdering;
+import uk.co.thinkofdeath.patchtools.patch.MethodCheckCache;
+import uk.co.thinkofdeath.patchtools.patch.PatchClasses;
+import uk.co.thinkofdeath.patchtools.patch.PatchInstruction;
+import uk.co.thinkofdeath.patchtools.patch.PatchMethod;
 import uk.co.thinkofdeath.patchtools.testcode.InterfaceTestInterface;
 import uk.co.thinkofdeath.patchtools.wrappers.ClassPathWrapper;
 import uk.co.thinkofdeath.patchtools.wrappers.ClassSet;
+import uk.co.thinkofdeath.patchtools.wrappers.ClassWrapper;
+import uk.co.thinkofdeath.patchtools.wrappers.LibraryCache;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static kotlin.io.IoPackage.readText;
 import static org.junit.Assert.*;
 
 public class PatchTest {
@@ -45,8 +71,26 @@ public class PatchTest {
         }
     }
 
+    @Test
+    public void libraryCacheShared() {
+        LibraryCache cache = new LibraryCache(16);
+        for (int i = 0; i < 2; i++) {
+            ClassPathWrapper classPath = new ClassPathWrapper();
+            classPath.setCache(cache);
+            ClassSet classSet = new ClassSet(classPath);
+            assertNotNull(classSet.getClassWrapper("java/lang/Object"));
+        }
+        LibraryCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getHits());
+    }
+
     @Test
     public void basicPatch() throws Exception {
+        basicPatch(new MatchOptions());
+    }
+
+    private void basicPatch(MatchOptions options) throws Exception {
         ClassSet classSet = new ClassSet(new ClassPathWrapper());
         classSet.add(
                 Util.getClass("uk/co/thinkofdeath/patchtools/testcode/BasicClass")
@@ -56,6 +100,7 @@ public class PatchTest {
         );
 
         Patcher patcher = new Patcher(classSet);
+        patcher.setOptions(options);
 
         patcher.apply(
                 getClass().getResourceAsStream("/basic.jpatch")
@@ -73,6 +118,253 @@ public class PatchTest {
         assertEquals("Cake", res.getMethod("create").invoke(null).toString());
     }
 
+    @Test
+    public void basicPatchJar() throws Exception {
+        File jar = File.createTempFile("basic", ".jar");
+        jar.deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (String name : new String[]{"BasicClass", "Basic2Class"}) {
+                out.putNextEntry(new ZipEntry("uk/co/thinkofdeath/patchtools/testcode/" + name + ".class"));
+                out.write(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/" + name));
+                out.closeEntry();
+            }
+        }
+
+        ClassSet classSet = new ClassSet(new ClassPathWrapper());
+        assertEquals(2, classSet.addJar(jar).getClasses());
+
+        Patcher patcher = new Patcher(classSet);
+
+        patcher.apply(
+                getClass().getResourceAsStream("/basic.jpatch")
+        );
+
+        ClassSetLoader loader = new ClassSetLoader(classSet);
+        Class<?> res = loader.loadClass("uk.co.thinkofdeath.patchtools.testcode.BasicClass");
+
+        assertEquals("Hello jim", res.getMethod("hello").invoke(
+                res.newInstance()
+        ));
+    }
+
+    @Test
+    public void basicPatchFirstFound() throws Exception {
+        MatchOptions options = new MatchOptions();
+        options.setLowestCandidateWins(false);
+        basicPatch(options);
+    }
+
+    @Test
+    public void firstFoundManyCandidates() throws Exception {
+        MatchOptions sequential = new MatchOptions();
+        sequential.setParallelCandidates(false);
+        String expected = matchAnyMethod(sequential);
+
+        MatchOptions lowest = new MatchOptions();
+        assertEquals(expected, matchAnyMethod(lowest));
+
+        // Any of the candidates may win but one has to
+        MatchOptions firstFound = new MatchOptions();
+        firstFound.setLowestCandidateWins(false);
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(matchAnyMethod(firstFound));
+        }
+    }
+
+    private String matchAnyMethod(MatchOptions options) throws Exception {
+        ClassSet classSet = new ClassSet(new ClassPathWrapper());
+        for (String name : new String[]{"BasicClass", "Basic2Class", "InheritTestA", "InheritTestB", "ComplexInstruction"}) {
+            classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/" + name));
+        }
+
+        Patcher patcher = new Patcher(classSet);
+        patcher.setOptions(options);
+
+        PatchScope scope = patcher.apply(
+                getClass().getResourceAsStream("/any-method.jpatch")
+        );
+        return scope.getClass("Target").getNode().name;
+    }
+
+    @Test
+    public void basicPatchDeclaredOrder() throws Exception {
+        MatchOptions options = new MatchOptions();
+        options.setOrdering(VariableOrdering.DECLARED);
+        basicPatch(options);
+    }
+
+    @Test
+    public void orderingSameScope() throws Exception {
+        // ~Caller is declared first but only one class can be
+        // ~Child, the search should end up in the same place
+        // whichever is bound first
+        MatchOptions declared = new MatchOptions();
+        declared.setOrdering(VariableOrdering.DECLARED);
+        PatchScope declaredScope = matchInheritCall(declared);
+        PatchScope orderedScope = matchInheritCall(new MatchOptions());
+
+        for (String name : new String[]{"Caller", "Child"}) {
+            assertEquals(declaredScope.getClass(name).getNode().name, orderedScope.getClass(name).getNode().name);
+        }
+        assertEquals("uk/co/thinkofdeath/patchtools/testcode/InheritTestC", orderedScope.getClass("Caller").getNode().name);
+    }
+
+    @Test
+    public void backjumpingSameScope() throws Exception {
+        // Binding ~Caller first to a class that doesn't call
+        // ~Child's method fails on ~Child, jumping back over it
+        // must not skip the binding that works
+        MatchOptions declared = new MatchOptions();
+        declared.setOrdering(VariableOrdering.DECLARED);
+        declared.setBackjumping(false);
+        PatchScope chronological = matchInheritCall(declared);
+
+        MatchOptions options = new MatchOptions();
+        options.setOrdering(VariableOrdering.DECLARED);
+        PatchScope backjumped = matchInheritCall(options);
+
+        for (String name : new String[]{"Caller", "Child"}) {
+            assertEquals(chronological.getClass(name).getNode().name, backjumped.getClass(name).getNode().name);
+        }
+        assertEquals("uk/co/thinkofdeath/patchtools/testcode/InheritTestC", backjumped.getClass("Caller").getNode().name);
+    }
+
+    @Test
+    public void propagateSameScope() throws Exception {
+        // Pruning ~Child's candidates after ~Caller is bound
+        // should only skip bindings that would fail anyway
+        MatchOptions options = new MatchOptions();
+        options.setPropagate(false);
+        PatchScope unpruned = matchInheritCall(options);
+        PatchScope pruned = matchInheritCall(new MatchOptions());
+
+        for (String name : new String[]{"Caller", "Child"}) {
+            assertEquals(unpruned.getClass(name).getNode().name, pruned.getClass(name).getNode().name);
+        }
+        assertEquals("uk/co/thinkofdeath/patchtools/testcode/InheritTestC", pruned.getClass("Caller").getNode().name);
+    }
+
+    private PatchScope matchInheritCall(MatchOptions options) throws Exception {
+        ClassSet classSet = new ClassSet(new ClassPathWrapper());
+        for (String name : new String[]{"InheritTestA", "InheritTestB", "InheritTestC"}) {
+            classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/" + name));
+        }
+
+        Patcher patcher = new Patcher(classSet);
+        patcher.setOptions(options);
+
+        return patcher.apply(
+                getClass().getResourceAsStream("/inherit-call.jpatch")
+        );
+    }
+
+    @Test
+    public void orderingEstimates() throws Exception {
+        MatchSolver ordered = prepareSolver(new MatchOptions());
+        assertTrue(ordered.getDeclaredEstimate() > 0);
+        assertTrue(ordered.getOrderedEstimate() > 0);
+        assertTrue(ordered.getOrderedEstimate() <= ordered.getDeclaredEstimate());
+
+        MatchOptions options = new MatchOptions();
+        options.setOrdering(VariableOrdering.DECLARED);
+        MatchSolver declared = prepareSolver(options);
+        assertEquals(declared.getDeclaredEstimate(), declared.getOrderedEstimate(), 0);
+        assertEquals(ordered.getDeclaredEstimate(), declared.getDeclaredEstimate(), 0);
+    }
+
+    private MatchSolver prepareSolver(MatchOptions options) throws Exception {
+        ClassSet classSet = new ClassSet(new ClassPathWrapper());
+        for (String name : new String[]{"InheritTestA", "InheritTestB", "InheritTestC"}) {
+            classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/" + name));
+        }
+        classSet.simplify();
+
+        PatchClasses patchClasses = readPatch("/inherit-call.jpatch");
+        List<MatchSolver> solvers = new MatchGenerator(classSet, patchClasses, new PatchScope(), options).prepare();
+        // Both classes are linked so they share a group
+        assertEquals(1, solvers.size());
+        return solvers.get(0);
+    }
+
+    private PatchClasses readPatch(String name) throws Exception {
+        try (Reader reader = new InputStreamReader(getClass().getResourceAsStream(name), StandardCharsets.UTF_8)) {
+            return new PatchClasses(new Lexer(readText(reader)));
+        }
+    }
+
+    @Test
+    public void checkCacheRepeatedBinding() throws Exception {
+        ClassSet classSet = new ClassSet(new ClassPathWrapper());
+        classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/RepeatCall"));
+        ClassWrapper cls = classSet.getClassWrapper("uk/co/thinkofdeath/patchtools/testcode/RepeatCall");
+        cls.ensureCode();
+        MethodNode node = cls.getMethodNode(cls.getMethod("call", "()Ljava/lang/String;"));
+
+        PatchMethod method = readPatch("/repeat-call.jpatch").getClass("Repeat").getMethods().get(0);
+
+        // The check binds ~greet and then reads it back, a scope
+        // without the binding should still replay the result
+        MethodCheckCache cache = new MethodCheckCache();
+        for (int i = 0; i < 2; i++) {
+            PatchScope scope = new PatchScope();
+            scope.putClass(cls, "Repeat");
+            assertTrue(cache.check(new StateLogger(), classSet, scope, method, node));
+            assertEquals("greet", scope.getMethod(cls, "greet", "()Ljava/lang/String;").getName());
+        }
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    public void wildcardSkipsFirstCandidate() throws Exception {
+        ClassSet classSet = new ClassSet(new ClassPathWrapper());
+        classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/WildcardSkip"));
+        ClassWrapper cls = classSet.getClassWrapper("uk/co/thinkofdeath/patchtools/testcode/WildcardSkip");
+        cls.ensureCode();
+        MethodNode node = cls.getMethodNode(cls.getMethod("run", "()V"));
+
+        PatchMethod method = readPatch("/wildcard-skip.jpatch").getClass("Skip").getMethods().get(0);
+        PatchScope scope = new PatchScope();
+        scope.putClass(cls, "Skip");
+        assertTrue(method.check(new StateLogger(), classSet, scope, node));
+
+        int[] expected = new int[3];
+        int found = 0;
+        for (int i = 0; i < node.instructions.size(); i++) {
+            AbstractInsnNode insn = node.instructions.get(i);
+            if (!(insn instanceof LdcInsnNode)) {
+                continue;
+            }
+            Object cst = ((LdcInsnNode) insn).cst;
+            if (cst.equals("X")) {
+                expected[0] = i - 1;
+                expected[1] = i;
+                found++;
+            } else if (cst.equals("B")) {
+                expected[2] = i;
+                found++;
+            }
+        }
+        assertEquals(2, found);
+        assertEquals("A", ((LdcInsnNode) node.instructions.get(expected[0])).cst);
+
+        // .any, "A", "X", .any, "B", .any
+        List<PatchInstruction> instructions = method.getInstructions();
+        Map<PatchInstruction, Integer> insnMap = scope.getInstructMap(node);
+        assertNotNull(insnMap);
+        assertEquals(expected[0], (int) insnMap.get(instructions.get(1)));
+        assertEquals(expected[1], (int) insnMap.get(instructions.get(2)));
+        assertEquals(expected[2], (int) insnMap.get(instructions.get(4)));
+    }
+
+    @Test
+    public void basicPatchVerifyBackend() throws Exception {
+        // Fails if the generated matchers and the handlers disagree
+        MatchOptions options = new MatchOptions();
+        options.setBackend(MatcherBackend.VERIFY);
+        basicPatch(options);
+    }
+
     @Test
     public void invoke() throws Exception {
         ClassSet classSet = new ClassSet(new ClassPathWrapper());
@@ -110,6 +402,27 @@ public class PatchTest {
         assertEquals("abc", res.getMethod("method").invoke(res.newInstance()));
     }
 
+    @Test
+    public void inheritedMethod() throws Exception {
+        ClassSet classSet = new ClassSet(new ClassPathWrapper());
+        classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/InheritTestA"));
+        classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/InheritTestB"));
+        classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/InheritTestC"));
+
+        Patcher patcher = new Patcher(classSet);
+
+        PatchScope scope = patcher.apply(
+                getClass().getResourceAsStream("/inherit-call.jpatch")
+        );
+
+        assertEquals("uk/co/thinkofdeath/patchtools/testcode/InheritTestB", scope.getClass("Child").getNode().name);
+
+        ClassSetLoader loader = new ClassSetLoader(classSet);
+        Class<?> res = loader.loadClass("uk.co.thinkofdeath.patchtools.testcode.InheritTestC");
+
+        assertEquals("patched", res.getMethod("call").invoke(null));
+    }
+
     @Test
     public void interTest() throws Exception {
         ClassSet classSet = new ClassSet(new ClassPathWrapper());
@@ -162,10 +475,24 @@ public class PatchTest {
 
     @Test
     public void complex() throws Exception {
+        complex(new MatchOptions());
+    }
+
+    @Test
+    public void complexVerifyBackend() throws Exception {
+        // Weak class and method names with wildcards around the
+        // instructions the matchers have to agree on
+        MatchOptions options = new MatchOptions();
+        options.setBackend(MatcherBackend.VERIFY);
+        complex(options);
+    }
+
+    private void complex(MatchOptions options) throws Exception {
         ClassSet classSet = new ClassSet(new ClassPathWrapper());
         classSet.add(Util.getClass("uk/co/thinkofdeath/patchtools/testcode/ComplexInstruction"));
 
         Patcher patcher = new Patcher(classSet);
+        patcher.setOptions(options);
 
         patcher.apply(
                 getClass().getResourceAsStream("/complex.jpatch")
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.co.thinkofdeath.patchtools;
+
+import uk.co.thinkofdeath.patchtools.lexer.Lexer;
+import uk.co.thinkofdeath.patchtools.matching.MatchGenerator;
+import uk.co.thinkofdeath.patchtools.matching.MatchOptions;
+import uk.co.thinkofdeath.patchtools.matching.MatchSolver;
+import uk.co.thinkofdeath.patchtools.patch.PatchClasses;
+import uk.co.thinkofdeath.patchtools.wrappers.ClassPathWrapper;
+import uk.co.thinkofdeath.patchtools.wrappers.ClassSet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static kotlin.io.IoPackage.readBytes;
+
+// Not run as part of the tests. Reduces the groups of the basic
+// and complex patches once and then times only the solver's search
+// over them, printing how many ticks a second it manages. Run it
+// before and after a change to the solver to compare
+public class SolverBenchmark {
+
+    private static final int WARMUP = 2000;
+    private static final int ROUNDS = 20000;
+
+    public static void main(String[] args) {
+        MatchOptions options = new MatchOptions();
+        options.setParallelCandidates(false);
+
+        List<MatchSolver> basic = prepare("basic", options,
+            "uk/co/thinkofdeath/patchtools/testcode/BasicClass",
+            "uk/co/thinkofdeath/patchtools/testcode/Basic2Class");
+        List<MatchSolver> complex = prepare("complex", options,
+            "uk/co/thinkofdeath/patchtools/testcode/ComplexInstruction");
+
+        run(basic, WARMUP);
+        run(complex, WARMUP);
+        System.out.printf("basic: %.1f ticks/s%n", run(basic, ROUNDS));
+        System.out.printf("complex: %.1f ticks/s%n", run(complex, ROUNDS));
+    }
+
+    private static List<MatchSolver> prepare(String patch, MatchOptions options, String... classes) {
+        ClassSet classSet = new ClassSet(new ClassPathWrapper());
+        for (String cls : classes) {
+            classSet.add(Util.getClass(cls));
+        }
+        classSet.simplify();
+        PatchClasses patchClasses = new PatchClasses(new Lexer(read("/" + patch + ".jpatch")));
+        patchClasses.setBackend(options.getBackend());
+        return new MatchGenerator(classSet, patchClasses, new PatchScope(), options).prepare();
+    }
+
+    private static double run(List<MatchSolver> solvers, int rounds) {
+        long ticks = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (MatchSolver solver : solvers) {
+                if (solver.solve(new PatchScope()) == null) {
+                    throw new IllegalStateException("No match found");
+                }
+                ticks += solver.getTicks();
+            }
+        }
+        return ticks / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static String read(String name) {
+        try (InputStream inputStream = SolverBenchmark.class.getResourceAsStream(name)) {
+            return new String(readBytes(inputStream, 64 * 1024), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}